@@ -0,0 +1,25 @@
+package org.texhnolyzze.common;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link WaitStrategy#blocking()}. {@link CancellableBlockingQueue} узнает ее по типу и вместо {@link #idle(int)}
+ * засыпает внутри буфера до сигнала с противоположной стороны.<br>
+ * Вызванная напрямую, {@link #idle(int)} спит, удваивая паузу с микросекунды до {@link #MAX_PARK_NANOS}.
+ */
+final class BlockingWaitStrategy implements WaitStrategy {
+
+    static final BlockingWaitStrategy INSTANCE = new BlockingWaitStrategy();
+
+    private static final long MAX_PARK_NANOS = 1_000_000;
+
+    private BlockingWaitStrategy() {}
+
+    @Override
+    public void idle(int attempt) throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        LockSupport.parkNanos(Math.min(1_000L << Math.min(attempt, 10), MAX_PARK_NANOS));
+    }
+
+}
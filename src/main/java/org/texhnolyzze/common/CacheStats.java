@@ -0,0 +1,88 @@
+package org.texhnolyzze.common;
+
+import org.texhnolyzze.common.LRUCache.EvictionCause;
+
+import java.util.Arrays;
+
+/**
+ * Immutable snapshot of the counters of a cache, see {@link LRUCacheBuilder#recordStats()}.
+ * Counters are read one by one, so a snapshot taken under load is not atomic.
+ *
+ * @author Texhnolyze
+ */
+public final class CacheStats {
+
+    static final CacheStats EMPTY = new CacheStats(0, 0, 0, 0, 0, new long[EvictionCause.values().length], 0);
+
+    private final long hitCount;
+    private final long missCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTimeNanos;
+    private final long[] evictionCounts;
+    private final long evictedBytes;
+
+    CacheStats(
+        long hitCount,
+        long missCount,
+        long loadSuccessCount,
+        long loadFailureCount,
+        long totalLoadTimeNanos,
+        long[] evictionCounts,
+        long evictedBytes
+    ) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTimeNanos = totalLoadTimeNanos;
+        this.evictionCounts = evictionCounts;
+        this.evictedBytes = evictedBytes;
+    }
+
+    public long hitCount() {return hitCount;}
+    public long missCount() {return missCount;}
+    public long loadSuccessCount() {return loadSuccessCount;}
+
+    /**
+     * Loads that threw or returned null.
+     */
+    public long loadFailureCount() {return loadFailureCount;}
+    public long totalLoadTimeNanos() {return totalLoadTimeNanos;}
+    public long evictionCount(EvictionCause cause) {return evictionCounts[cause.ordinal()];}
+    public long evictedBytes() {return evictedBytes;}
+
+    public long requestCount() {
+        return hitCount + missCount;
+    }
+
+    public double hitRate() {
+        long requests = requestCount();
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    public long loadCount() {
+        return loadSuccessCount + loadFailureCount;
+    }
+
+    public double averageLoadPenaltyNanos() {
+        long loads = loadCount();
+        return loads == 0 ? 0.0 : (double) totalLoadTimeNanos / loads;
+    }
+
+    public long evictionCount() {
+        long res = 0;
+        for (long count : evictionCounts)
+            res += count;
+        return res;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "hits=%d, misses=%d, hitRate=%.4f, loadSuccesses=%d, loadFailures=%d, totalLoadTimeNanos=%d, evictions=%s, evictedBytes=%d",
+            hitCount, missCount, hitRate(), loadSuccessCount, loadFailureCount, totalLoadTimeNanos, Arrays.toString(evictionCounts), evictedBytes
+        );
+    }
+
+}
@@ -2,9 +2,19 @@ package org.texhnolyzze.common;
 
 import com.google.common.base.Preconditions;
 
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Блокирующая очередь с возможностью указания того, что данных больше нет.<br>
@@ -32,60 +42,608 @@ import java.util.concurrent.atomic.AtomicInteger;
  *          queue.writerDone();
  *      }
  * </pre>
+ * Reader-ы и writer-ы, появившиеся во время работы, регистрируются через {@link #registerReader()} и {@link #registerWriter()}:<br>
+ * <pre>
+ *      try (CancellableBlockingQueue.WriterHandle writer = queue.registerWriter()) {
+ *          while (hasMoreElements) {
+ *               queue.add(elem);
+ *          }
+ *      }
+ * </pre>
  * @param <E> Тип элементов
  */
 public class CancellableBlockingQueue<E> {
 
-    private static final Object BARRIER = new Object();
+    /**
+     * Реализация буфера очереди
+     */
+    public enum Backend {
+        /**
+         * {@link LinkedBlockingQueue}: узел на каждый элемент, отдельные локи на запись и чтение
+         */
+        LINKED,
+        /**
+         * Заранее выделенный кольцевой массив с номерами последовательностей, без локов на быстром пути.
+         * Размер округляется вверх до степени двойки, но не меньше двух
+         */
+        RING_BUFFER
+    }
+
+    static final Object BARRIER = new Object();
 
     private final BlockingQueue<E> buff;
+    private final int capacity;
+    private final WaitStrategy waitStrategy;
+    /* Ждать внутри буфера, а не в цикле с waitStrategy */
+    private final boolean blocking;
+    private final QueueStatsCounter stats;
 
     private final AtomicInteger activeReaders;
     private final AtomicInteger activeWriters;
+    private final AtomicReference<Throwable> abortCause = new AtomicReference<>();
+    /* Writer-ы, ждущие места внутри буфера: abort будит их, пока счетчик не обнулится */
+    private final AtomicInteger blockedWriters = new AtomicInteger();
+    /* Для Flow адаптеров: вызываются после появления элементов в буфере и после освобождения места */
+    private volatile Runnable elementsListener;
+    private volatile Runnable spaceListener;
 
     public CancellableBlockingQueue(int maxSize) {
         this(maxSize, 1, 1);
     }
 
     public CancellableBlockingQueue(int maxSize, int numReaders, int numWriters) {
+        this(maxSize, numReaders, numWriters, Backend.LINKED);
+    }
+
+    public CancellableBlockingQueue(int maxSize, int numReaders, int numWriters, Backend backend) {
+        this(maxSize, numReaders, numWriters, backend, WaitStrategy.blocking(), false);
+    }
+
+    private CancellableBlockingQueue(int maxSize, int numReaders, int numWriters, Backend backend, WaitStrategy waitStrategy, boolean recordStats) {
         Preconditions.checkArgument(numReaders > 0 && numWriters > 0);
         Preconditions.checkArgument(maxSize >= numWriters, "maxSize must be >= numWriters to avoid deadlocks");
-        this.buff = new LinkedBlockingQueue<>(maxSize);
+        Preconditions.checkNotNull(backend);
+        if (backend == Backend.RING_BUFFER) {
+            RingBufferBlockingQueue<E> ring = new RingBufferBlockingQueue<>(maxSize);
+            this.buff = ring;
+            this.capacity = ring.capacity();
+        } else {
+            this.buff = new LinkedBlockingQueue<>(maxSize);
+            this.capacity = maxSize;
+        }
+        this.waitStrategy = Preconditions.checkNotNull(waitStrategy);
+        this.blocking = waitStrategy instanceof BlockingWaitStrategy;
+        this.stats = recordStats ? new QueueStatsCounter(true) : QueueStatsCounter.DISABLED;
         this.activeReaders = new AtomicInteger(numReaders);
         this.activeWriters = new AtomicInteger(numWriters);
     }
 
+    public static <E> Builder<E> builder(int maxSize) {
+        return new Builder<>(maxSize);
+    }
+
     public void add(E elem) throws InterruptedException {
         Preconditions.checkNotNull(elem, "Nulls not permitted");
+        checkAborted();
         Preconditions.checkState(activeWriters.get() != 0, "All writers done");
         Preconditions.checkState(activeReaders.get() != 0, "All readers done");
-        buff.put(elem);
+        put(elem);
+        recordEnqueued(1);
+        notifyElements();
+        // abort пропускает writer-а, ждавшего места в заполненном буфере, поэтому проверяем еще раз
+        checkAborted();
+    }
+
+    /**
+     * Как {@link #add}, но ждет свободного места не дольше timeout
+     * @return false, если место так и не освободилось
+     */
+    public boolean offer(E elem, long timeout, TimeUnit unit) throws InterruptedException {
+        Preconditions.checkNotNull(elem, "Nulls not permitted");
+        checkAborted();
+        Preconditions.checkState(activeWriters.get() != 0, "All writers done");
+        Preconditions.checkState(activeReaders.get() != 0, "All readers done");
+        boolean added = buff.offer(elem);
+        if (!added) {
+            long nanos = unit.toNanos(timeout);
+            long start = stats.startWait();
+            try {
+                if (blocking) {
+                    blockedWriters.incrementAndGet();
+                    try {
+                        added = abortCause.get() == null && buff.offer(elem, nanos, TimeUnit.NANOSECONDS);
+                    } finally {
+                        blockedWriters.decrementAndGet();
+                    }
+                } else {
+                    long deadline = System.nanoTime() + nanos;
+                    for (int attempt = 0; !(added = buff.offer(elem)) && deadline - System.nanoTime() > 0; attempt++) {
+                        checkAborted();
+                        waitStrategy.idle(attempt);
+                    }
+                }
+            } finally {
+                stats.recordWriterBlocked(start);
+            }
+        }
+        if (added) {
+            recordEnqueued(1);
+            notifyElements();
+        }
+        checkAborted();
+        return added;
     }
 
-    @SuppressWarnings("unchecked")
     public E poll() throws InterruptedException {
-        E next = buff.take();
+        checkAborted();
+        E next = take();
+        notifySpace();
+        return unwrap(next);
+    }
+
+    /**
+     * Как {@link #poll()}, но ждет элемента не дольше timeout
+     * @return null, если данных больше нет
+     * @throws TimeoutException если за timeout не появилось ни элемента, ни барьера
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        checkAborted();
+        E next = buff.poll();
+        if (next == null) {
+            long nanos = unit.toNanos(timeout);
+            long start = stats.startWait();
+            try {
+                if (blocking) {
+                    next = buff.poll(nanos, TimeUnit.NANOSECONDS);
+                } else {
+                    long deadline = System.nanoTime() + nanos;
+                    for (int attempt = 0; (next = buff.poll()) == null && deadline - System.nanoTime() > 0; attempt++) {
+                        checkAborted();
+                        waitStrategy.idle(attempt);
+                    }
+                }
+            } finally {
+                stats.recordReaderBlocked(start);
+            }
+        }
+        if (next == null)
+            throw new TimeoutException();
+        notifySpace();
+        return unwrap(next);
+    }
+
+    private E unwrap(E next) {
         if (next == BARRIER) {
-            Preconditions.checkState(buff.isEmpty());
-            buff.add((E) BARRIER);
+            restoreBarrier();
             return null;
         }
+        recordDequeued(1);
         return next;
     }
 
+    /**
+     * Сначала попытка без ожидания, чтобы в счетчики попадало только время, когда буфер действительно был полон
+     */
+    private void put(E elem) throws InterruptedException {
+        if (buff.offer(elem))
+            return;
+        long start = stats.startWait();
+        try {
+            if (blocking) {
+                blockedWriters.incrementAndGet();
+                try {
+                    // abort, начатый до регистрации, мог уже не застать этого writer-а. Элемент после abort не нужен
+                    if (abortCause.get() == null)
+                        buff.put(elem);
+                } finally {
+                    blockedWriters.decrementAndGet();
+                }
+                return;
+            }
+            for (int attempt = 0; !buff.offer(elem); attempt++) {
+                checkAborted();
+                waitStrategy.idle(attempt);
+            }
+        } finally {
+            stats.recordWriterBlocked(start);
+        }
+    }
+
+    private E take() throws InterruptedException {
+        E next = buff.poll();
+        if (next != null)
+            return next;
+        long start = stats.startWait();
+        try {
+            if (blocking)
+                return buff.take();
+            for (int attempt = 0; (next = buff.poll()) == null; attempt++) {
+                checkAborted();
+                waitStrategy.idle(attempt);
+            }
+            return next;
+        } finally {
+            stats.recordReaderBlocked(start);
+        }
+    }
+
+    private void recordEnqueued(int n) {
+        if (stats.recordEnqueued(n))
+            stats.recordOccupancy(buff.size(), capacity);
+    }
+
+    private void recordDequeued(int n) {
+        if (stats.recordDequeued(n))
+            stats.recordOccupancy(buff.size(), capacity);
+    }
+
+    /**
+     * Записывает элементы пачкой: подряд без ожидания, пока есть место, проверки, статистика и уведомления
+     * делаются один раз на пачку. Для {@link Backend#RING_BUFFER} свободные ячейки захватываются одним CAS-ом
+     * на всю пачку, {@link Backend#LINKED} по-прежнему берет лок записи на каждый элемент.
+     * @return false, если все reader-ы завершились и оставшиеся элементы никому не нужны
+     */
+    @SuppressWarnings("unchecked")
+    public boolean addAll(Collection<? extends E> elems) throws InterruptedException {
+        Preconditions.checkState(activeWriters.get() != 0, "All writers done");
+        Object[] arr = elems.toArray();
+        for (Object elem : arr)
+            Preconditions.checkNotNull(elem, "Nulls not permitted");
+        RingBufferBlockingQueue<E> ring = buff instanceof RingBufferBlockingQueue ? (RingBufferBlockingQueue<E>) buff : null;
+        for (int off = 0; off < arr.length;) {
+            checkAborted();
+            if (activeReaders.get() == 0)
+                return false;
+            int n = ring != null ? ring.offerAll(arr, off, arr.length - off) : offerAll(arr, off, arr.length - off);
+            if (n == 0) {
+                put((E) arr[off]);
+                // Как в add: writer, ждавший места, мог быть пропущен abort-ом
+                checkAborted();
+                n = 1;
+            }
+            off += n;
+            recordEnqueued(n);
+            notifyElements();
+        }
+        checkAborted();
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int offerAll(Object[] arr, int off, int len) {
+        int n = 0;
+        while (n < len && buff.offer((E) arr[off + n]))
+            n++;
+        return n;
+    }
+
+    /**
+     * Ждет хотя бы один элемент, после чего без ожидания забирает до maxElements элементов за раз.
+     * @return true, если данных больше нет (достигнут барьер). Элементы, забранные до барьера, уже добавлены в c
+     */
+    public boolean drainTo(Collection<? super E> c, int maxElements) throws InterruptedException {
+        Preconditions.checkArgument(maxElements > 0);
+        checkAborted();
+        E first = take();
+        notifySpace();
+        if (first == BARRIER) {
+            restoreBarrier();
+            return true;
+        }
+        c.add(first);
+        if (maxElements == 1) {
+            recordDequeued(1);
+            return false;
+        }
+        boolean[] barrier = {false};
+        int drained = buff.drainTo(new AbstractCollection<E>() {
+
+            @Override
+            public boolean add(E e) {
+                if (e == BARRIER) {
+                    barrier[0] = true;
+                    return false;
+                }
+                return c.add(e);
+            }
+
+            @Override public Iterator<E> iterator() {return Collections.emptyIterator();}
+            @Override public int size() {return 0;}
+
+        }, maxElements - 1);
+        notifySpace();
+        recordDequeued(1 + drained - (barrier[0] ? 1 : 0));
+        if (barrier[0])
+            restoreBarrier();
+        return barrier[0];
+    }
+
+    /**
+     * Барьер возвращается в очередь для остальных reader-ов
+     */
+    @SuppressWarnings("unchecked")
+    private void restoreBarrier() {
+        if (abortCause.get() != null) {
+            // После abort писатели могли успеть дописать, барьер возвращается, если есть место
+            buff.offer((E) BARRIER);
+            checkAborted();
+        }
+        Preconditions.checkState(buff.isEmpty());
+        buff.add((E) BARRIER);
+    }
+
     @SuppressWarnings("unchecked")
     public void writerDone() throws InterruptedException {
         int activeRemained = activeWriters.decrementAndGet();
         Preconditions.checkState(activeRemained >= 0, "Active writers count is negative");
-        if (activeRemained == 0)
-            buff.put((E) BARRIER);
+        if (activeRemained == 0 && abortCause.get() == null) {
+            put((E) BARRIER);
+            notifyElements();
+        }
+    }
+
+    /**
+     * Аварийно останавливает конвейер: заблокированные reader-ы и writer-ы сразу просыпаются,
+     * а все последующие вызовы {@link #add}, {@link #poll} и их вариантов бросают {@link AbortedException}
+     * с переданной причиной. Данные в буфере теряются. Учитывается только первый вызов
+     */
+    @SuppressWarnings("unchecked")
+    public void abort(Throwable cause) {
+        Preconditions.checkNotNull(cause);
+        if (!abortCause.compareAndSet(null, cause))
+            return;
+        // Очистка будит writer-ов, барьер - reader-ов. Очистка будит не всех ждущих writer-ов, а проснувшиеся
+        // снова заполняют буфер, поэтому повторяем, пока барьер не записан и кто-то ждет места
+        boolean barrier;
+        do {
+            buff.clear();
+            barrier = buff.offer((E) BARRIER);
+            if (blockedWriters.get() > 0)
+                Thread.yield();
+        } while (!barrier || blockedWriters.get() > 0);
+        notifyElements();
+        notifySpace();
+    }
+
+    /**
+     * Приблизительное число элементов в буфере, включая барьер, если он уже записан
+     */
+    public int size() {
+        return buff.size();
+    }
+
+    /**
+     * Снимок счетчиков, без {@link Builder#recordStats()} все счетчики нулевые
+     */
+    public QueueStats stats() {
+        return stats.snapshot(capacity);
+    }
+
+    /**
+     * Сколько элементов помещается в буфер
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isAborted() {
+        return abortCause.get() != null;
+    }
+
+    void checkAborted() {
+        Throwable cause = abortCause.get();
+        if (cause != null)
+            throw new AbortedException(cause);
+    }
+
+    /**
+     * Добавляет writer-а к уже работающим. Как в {@link java.util.concurrent.Phaser}, счетчик увеличивается,
+     * только пока он больше нуля: после того как последний writer вызвал {@link #writerDone()}, барьер уже мог
+     * быть записан, и регистрироваться поздно. Поэтому тот, кто запускает writer-ов динамически,
+     * сам держит регистрацию (например, одну из переданных в конструктор), пока не перестанет их запускать
+     * @throws IllegalStateException если все writer-ы уже завершились
+     */
+    public WriterHandle registerWriter() {
+        Preconditions.checkState(tryRegister(activeWriters), "All writers done");
+        return new WriterHandle();
+    }
+
+    /**
+     * Добавляет reader-а к уже работающим, см. {@link #registerWriter()}
+     * @throws IllegalStateException если все reader-ы уже завершились
+     */
+    public ReaderHandle registerReader() {
+        Preconditions.checkState(tryRegister(activeReaders), "All readers done");
+        return new ReaderHandle();
+    }
+
+    private static boolean tryRegister(AtomicInteger active) {
+        for (;;) {
+            int count = active.get();
+            if (count == 0)
+                return false;
+            if (active.compareAndSet(count, count + 1))
+                return true;
+        }
     }
 
     public void readerDone() {
         int activeRemained = activeReaders.decrementAndGet();
         Preconditions.checkState(activeRemained >= 0, "Active readers count is negative");
-        if (activeRemained == 0)
+        if (activeRemained == 0) {
             buff.clear();
+            notifySpace();
+        }
+    }
+
+    /**
+     * Без ожидания: следующий элемент, null, если буфер пуст, или {@link #BARRIER}, если данных больше нет
+     */
+    Object pollNow() {
+        checkAborted();
+        E next = buff.poll();
+        if (next == null)
+            return null;
+        notifySpace();
+        if (next == BARRIER)
+            restoreBarrier();
+        else
+            recordDequeued(1);
+        return next;
+    }
+
+    /**
+     * Данных больше нет и все элементы уже забраны
+     */
+    boolean endReached() {
+        return buff.peek() == BARRIER;
+    }
+
+    void setElementsListener(Runnable listener) {
+        Preconditions.checkState(elementsListener == null, "Queue is already published");
+        elementsListener = listener;
+    }
+
+    void setSpaceListener(Runnable listener) {
+        Preconditions.checkState(spaceListener == null, "Queue already has a subscriber");
+        spaceListener = listener;
+    }
+
+    private void notifyElements() {
+        Runnable listener = elementsListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    private void notifySpace() {
+        Runnable listener = spaceListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    /**
+     * Представляет очередь как {@link Flow.Publisher} для одного подписчика, который считается одним из reader-ов.
+     * Запрошенные через {@link Flow.Subscription#request(long)} элементы забираются без ожидания
+     * и доставляются задачей на executor; когда буфер пуст, задача завершается и снова ставится writer-ом,
+     * так что ни один поток не спит в ожидании данных.
+     * Барьер превращается в {@link Flow.Subscriber#onComplete()}, {@link #abort(Throwable)} - в {@link Flow.Subscriber#onError(Throwable)},
+     * а {@link Flow.Subscription#cancel()} прерывает очередь через {@link #abort(Throwable)} с {@link java.util.concurrent.CancellationException}
+     */
+    public Flow.Publisher<E> asPublisher(Executor executor) {
+        return new QueuePublisher<>(this, Preconditions.checkNotNull(executor));
+    }
+
+    /**
+     * Представляет очередь как {@link Flow.Subscriber}, который считается одним из writer-ов.
+     * Подписчик запрашивает не больше элементов, чем есть свободного места, и дозапрашивает по мере того,
+     * как reader-ы его освобождают, поэтому {@link Flow.Subscriber#onNext} не блокируется, пока в очередь не пишут
+     * другие writer-ы. {@link Flow.Subscriber#onComplete()} вызывает {@link #writerDone()},
+     * {@link Flow.Subscriber#onError(Throwable)} - {@link #abort(Throwable)}. Если reader-ы завершились или очередь
+     * прервана, подписка отменяется
+     */
+    public Flow.Subscriber<E> asSubscriber() {
+        return new QueueSubscriber<>(this);
+    }
+
+    /**
+     * Регистрация writer-а, {@link #close()} вызывает {@link #writerDone()} ровно один раз.
+     * close бросает InterruptedException, как и writerDone: ожидание места под барьер можно прервать
+     */
+    @SuppressWarnings("try")
+    public final class WriterHandle implements AutoCloseable {
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private WriterHandle() {}
+
+        @Override
+        public void close() throws InterruptedException {
+            if (closed.compareAndSet(false, true))
+                writerDone();
+        }
+
+    }
+
+    /**
+     * Регистрация reader-а, {@link #close()} вызывает {@link #readerDone()} ровно один раз
+     */
+    public final class ReaderHandle implements AutoCloseable {
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private ReaderHandle() {}
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true))
+                readerDone();
+        }
+
+    }
+
+    /**
+     * Очередь остановлена через {@link #abort(Throwable)}, причина доступна через {@link #getCause()}
+     */
+    public static final class AbortedException extends IllegalStateException {
+
+        private static final long serialVersionUID = 1L;
+
+        AbortedException(Throwable cause) {
+            super("Queue aborted", cause);
+        }
+
+    }
+
+    public static final class Builder<E> {
+
+        private final int maxSize;
+        private int numReaders = 1;
+        private int numWriters = 1;
+        private Backend backend = Backend.LINKED;
+        private WaitStrategy waitStrategy = WaitStrategy.blocking();
+        private boolean recordStats;
+
+        private Builder(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public Builder<E> readers(int numReaders) {
+            this.numReaders = numReaders;
+            return this;
+        }
+
+        public Builder<E> writers(int numWriters) {
+            this.numWriters = numWriters;
+            return this;
+        }
+
+        public Builder<E> backend(Backend backend) {
+            this.backend = Preconditions.checkNotNull(backend);
+            return this;
+        }
+
+        /**
+         * Как ждать reader-ам пустой очереди и writer-ам заполненной, по умолчанию {@link WaitStrategy#blocking()}
+         */
+        public Builder<E> waitStrategy(WaitStrategy waitStrategy) {
+            this.waitStrategy = Preconditions.checkNotNull(waitStrategy);
+            return this;
+        }
+
+        /**
+         * Включает счетчики {@link CancellableBlockingQueue#stats()}: число записанных и прочитанных элементов, время ожидания
+         * writer-ов и reader-ов и выборочную гистограмму заполненности. Обновления идут через {@link java.util.concurrent.atomic.LongAdder},
+         * время замеряется только когда буфер действительно полон или пуст
+         */
+        public Builder<E> recordStats() {
+            this.recordStats = true;
+            return this;
+        }
+
+        public CancellableBlockingQueue<E> build() {
+            return new CancellableBlockingQueue<>(maxSize, numReaders, numWriters, backend, waitStrategy, recordStats);
+        }
+
     }
 
     /**
@@ -0,0 +1,57 @@
+package org.texhnolyzze.common;
+
+/**
+ * {@link CancellableBlockingQueue} для int без упаковки: значения лежат в кольцевом int[],
+ * узлы и обертки не создаются. Конец данных передается вне потока значений, поэтому допустимо любое int.<br>
+ * Reader-ы забирают данные пачками:<br>
+ * <pre>
+ *     CancellableIntBlockingQueue queue = ...
+ *     int[] batch = new int[256];
+ *     int n;
+ *     try {
+ *         while ((n = queue.drainTo(batch, 0, batch.length)) >= 0) {
+ *              processNext(batch, n);
+ *         }
+ *     } finally {
+ *         queue.readerDone();
+ *     }
+ * </pre>
+ * Writer-ы пишут по одному через {@link #add(int)} или пачкой через {@link #addAll(int[], int, int)}
+ * и в finally вызывают {@link #writerDone()}.
+ */
+public final class CancellableIntBlockingQueue extends PrimitiveRingBuffer {
+
+    private final int[] values;
+
+    public CancellableIntBlockingQueue(int maxSize) {
+        this(maxSize, 1, 1);
+    }
+
+    public CancellableIntBlockingQueue(int maxSize, int numReaders, int numWriters) {
+        super(int.class, maxSize, numReaders, numWriters);
+        this.values = (int[]) buffer;
+    }
+
+    public void add(int value) throws InterruptedException {
+        long pos = claim();
+        values[index(pos)] = value;
+        publish(pos);
+    }
+
+    /**
+     * Записывает len значений начиная с off, ожидая места по мере необходимости
+     * @return false, если все reader-ы завершились и оставшиеся значения никому не нужны
+     */
+    public boolean addAll(int[] src, int off, int len) throws InterruptedException {
+        return offerAll(src, off, len);
+    }
+
+    /**
+     * Ждет хотя бы одно значение, после чего без ожидания забирает до len значений в dst начиная с off.
+     * @return число забранных значений или -1, если данных больше нет
+     */
+    public int drainTo(int[] dst, int off, int len) throws InterruptedException {
+        return drain(dst, off, len);
+    }
+
+}
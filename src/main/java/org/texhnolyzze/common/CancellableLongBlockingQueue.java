@@ -0,0 +1,57 @@
+package org.texhnolyzze.common;
+
+/**
+ * {@link CancellableBlockingQueue} для long без упаковки: значения лежат в кольцевом long[],
+ * узлы и обертки не создаются. Конец данных передается вне потока значений, поэтому допустимо любое long.<br>
+ * Reader-ы забирают данные пачками:<br>
+ * <pre>
+ *     CancellableLongBlockingQueue queue = ...
+ *     long[] batch = new long[256];
+ *     int n;
+ *     try {
+ *         while ((n = queue.drainTo(batch, 0, batch.length)) >= 0) {
+ *              processNext(batch, n);
+ *         }
+ *     } finally {
+ *         queue.readerDone();
+ *     }
+ * </pre>
+ * Writer-ы пишут по одному через {@link #add(long)} или пачкой через {@link #addAll(long[], int, int)}
+ * и в finally вызывают {@link #writerDone()}.
+ */
+public final class CancellableLongBlockingQueue extends PrimitiveRingBuffer {
+
+    private final long[] values;
+
+    public CancellableLongBlockingQueue(int maxSize) {
+        this(maxSize, 1, 1);
+    }
+
+    public CancellableLongBlockingQueue(int maxSize, int numReaders, int numWriters) {
+        super(long.class, maxSize, numReaders, numWriters);
+        this.values = (long[]) buffer;
+    }
+
+    public void add(long value) throws InterruptedException {
+        long pos = claim();
+        values[index(pos)] = value;
+        publish(pos);
+    }
+
+    /**
+     * Записывает len значений начиная с off, ожидая места по мере необходимости
+     * @return false, если все reader-ы завершились и оставшиеся значения никому не нужны
+     */
+    public boolean addAll(long[] src, int off, int len) throws InterruptedException {
+        return offerAll(src, off, len);
+    }
+
+    /**
+     * Ждет хотя бы одно значение, после чего без ожидания забирает до len значений в dst начиная с off.
+     * @return число забранных значений или -1, если данных больше нет
+     */
+    public int drainTo(long[] dst, int off, int len) throws InterruptedException {
+        return drain(dst, off, len);
+    }
+
+}
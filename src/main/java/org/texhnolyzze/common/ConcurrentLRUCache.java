@@ -0,0 +1,863 @@
+package org.texhnolyzze.common;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Thread-safe {@link LRUCache}. The keyspace is split into stripes, each of them
+ * owning its own share of the byte capacity, its own recency list and its own lock.
+ * A stripe may grow past its share while the cache as a whole fits the capacity; once it does not,
+ * stripes over their share are evicted back to it. A value larger than the share of its stripe
+ * first makes room by evicting from all stripes, so a single value is limited by the whole capacity,
+ * not by the share of its stripe.
+ * Hits never take the lock: they are recorded into a small lossy per-stripe buffer
+ * that is replayed against the recency list by whichever thread next holds the lock,
+ * so recency is approximate under heavy contention.
+ *
+ * @author Texhnolyze
+ * @param <K> key
+ * @param <V> value (heavy object) to be cached. Must implement LRUCache.Sizeable
+ */
+public class ConcurrentLRUCache<K, V extends LRUCache.Sizeable> implements LRUCache<K, V> {
+
+    private static final int READ_BUFFER_SIZE = 32;
+    private static final int MAX_STRIPES = 1 << 16;
+
+    private final Stripe<K, V>[] stripes;
+    private final int mask;
+    private final Budget budget = new Budget();
+
+    private final boolean singleFlightLoading;
+
+    private final LongSupplier ticker;
+    private final boolean timed;
+    private final long refreshAfterWriteNanos;
+    private final Executor executor;
+    private final MappedDiskTier<K, V> secondTier;
+    private final Weigher<? super K, ? super V> weigher;
+    private final StatsCounter stats;
+    private final EvictionListener<? super K, ? super V> evictionListener;
+    private final Executor evictionListenerExecutor;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ConcurrentLRUCache(LRUCacheBuilder<K, V> builder) {
+        this.ticker = builder.ticker;
+        this.timed = builder.expireAfterWriteNanos > 0 || builder.expireAfterAccessNanos > 0 || builder.refreshAfterWriteNanos > 0;
+        this.refreshAfterWriteNanos = builder.refreshAfterWriteNanos;
+        this.executor = builder.executor;
+        this.secondTier = builder.secondTier;
+        this.weigher = builder.weigher;
+        this.stats = builder.recordStats ? new StatsCounter(true) : StatsCounter.DISABLED;
+        this.evictionListener = builder.evictionListener;
+        this.evictionListenerExecutor = builder.evictionListenerExecutor;
+        int n = Integer.highestOneBit(Math.min(builder.concurrencyLevel, MAX_STRIPES) - 1) << 1;
+        this.stripes = new Stripe[Math.max(n, 1)];
+        this.mask = stripes.length - 1;
+        long now = now();
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe<>(builder.evictionPolicy.get(), builder.expireAfterWriteNanos, builder.expireAfterAccessNanos, now, budget);
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.stats = stats;
+            stripe.collectEvicted = secondTier != null || evictionListener != null;
+            stripe.collectExpired = evictionListener != null;
+        }
+        this.singleFlightLoading = builder.singleFlightLoading;
+        distributeCapacity(builder.capacityBytes);
+    }
+
+    static int defaultConcurrencyLevel() {
+        return 4 * Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return budget.sizeBytes.get();
+    }
+
+    @Override public long getMaxCapacityBytes() {return budget.capacityBytes;}
+
+    @Override
+    public void setMaxCapacity(long capacityBytes) {
+        if (capacityBytes <= 0)
+            throw new IllegalArgumentException("Capacity must be greater than 0.");
+        distributeCapacity(capacityBytes);
+    }
+
+    private void distributeCapacity(long capacityBytes) {
+        budget.capacityBytes = capacityBytes;
+        long share = capacityBytes / stripes.length;
+        long remainder = capacityBytes % stripes.length;
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe<K, V> stripe = stripes[i];
+            stripe.lock.lock();
+            try {
+                stripe.setCapacity(share + (i < remainder ? 1 : 0));
+                stripe.maintenance(now());
+                stripe.evict();
+            } finally {
+                unlock(stripe);
+            }
+        }
+    }
+
+    @Override
+    public V getIfPresent(K key) {
+        Stripe<K, V> stripe = stripeFor(key);
+        Node<K, V> node = lookup(stripe, key, now());
+        if (node != null) {
+            stats.recordHit();
+            return node.value;
+        }
+        stats.recordMiss();
+        return insertSpilled(stripe, key);
+    }
+
+    /**
+     * With {@link LRUCacheBuilder#refreshAfterWrite} a hit on an old enough entry
+     * also starts its background reload through the given loader.
+     */
+    @Override
+    public V getIfPresentOrLoad(K key, ByKeySizeableLoader<K, ? extends V> loader) {
+        Stripe<K, V> stripe = stripeFor(key);
+        long now = now();
+        Node<K, V> node = lookup(stripe, key, now);
+        if (node != null) {
+            stats.recordHit();
+            refreshIfNeeded(stripe, node, loader, now);
+            return node.value;
+        }
+        stats.recordMiss();
+        if (!singleFlightLoading)
+            return loadThrough(stripe, key, loader);
+        CompletableFuture<V> load = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = stripe.loads.putIfAbsent(key, load);
+        if (inFlight != null)
+            return await(inFlight);
+        load(stripe, key, loader, load);
+        return await(load);
+    }
+
+    /**
+     * Returns completed future on hit, otherwise loads the value on the executor.
+     * With {@link LRUCacheBuilder#singleFlightLoading()} concurrent misses
+     * (both sync and async) on the same key share one load.
+     */
+    public CompletableFuture<V> getIfPresentOrLoadAsync(K key, ByKeySizeableLoader<K, ? extends V> loader, Executor executor) {
+        Stripe<K, V> stripe = stripeFor(key);
+        long now = now();
+        Node<K, V> node = lookup(stripe, key, now);
+        if (node != null) {
+            stats.recordHit();
+            refreshIfNeeded(stripe, node, loader, now);
+            return CompletableFuture.completedFuture(node.value);
+        }
+        stats.recordMiss();
+        if (!singleFlightLoading)
+            return CompletableFuture.supplyAsync(() -> loadThrough(stripe, key, loader), executor);
+        CompletableFuture<V> load = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = stripe.loads.putIfAbsent(key, load);
+        if (inFlight != null)
+            return inFlight.copy();
+        try {
+            executor.execute(() -> load(stripe, key, loader, load));
+        } catch (RejectedExecutionException e) {
+            stripe.loads.remove(key, load);
+            load.completeExceptionally(e);
+        }
+        return load.copy();
+    }
+
+    /**
+     * Missing keys go to the loader (second tier is consulted first) in one call, then every stripe
+     * receives its share of the loaded entries under one lock acquisition and is evicted once.
+     * Bulk loads are not deduplicated with concurrent loads of the same keys.
+     */
+    @Override
+    public Map<K, V> getAllOrLoad(Iterable<K> keys, BulkLoader<K, ? extends V> loader) {
+        long now = now();
+        Map<K, V> res = new LinkedHashMap<>();
+        Set<K> missing = new LinkedHashSet<>();
+        for (K key : keys) {
+            Stripe<K, V> stripe = stripeFor(key);
+            Node<K, V> node = lookup(stripe, key, now);
+            if (node != null) {
+                stats.recordHit();
+                refreshIfNeeded(stripe, node, k -> loader.loadAll(Collections.singleton(k)).get(k), now);
+                res.put(key, node.value);
+            } else {
+                stats.recordMiss();
+                res.put(key, null);
+                missing.add(key);
+            }
+        }
+        if (missing.isEmpty())
+            return res;
+        Map<K, V> found = new HashMap<>();
+        Set<K> toLoad = missing;
+        if (secondTier != null) {
+            toLoad = new LinkedHashSet<>();
+            for (K key : missing) {
+                V val = secondTier.get(key);
+                if (val != null)
+                    found.put(key, val);
+                else
+                    toLoad.add(key);
+            }
+        }
+        if (!toLoad.isEmpty())
+            found.putAll(loadAll(toLoad, loader));
+        Map<Stripe<K, V>, List<Map.Entry<K, V>>> byStripe = new IdentityHashMap<>();
+        for (K key : missing) {
+            V val = found.get(key);
+            if (val == null)
+                continue;
+            if (secondTier != null && !toLoad.contains(key))
+                secondTier.take(key);
+            byStripe.computeIfAbsent(stripeFor(key), s -> new ArrayList<>()).add(new AbstractMap.SimpleImmutableEntry<>(key, val));
+        }
+        List<Map.Entry<Stripe<K, V>, List<Map.Entry<K, V>>>> batches = new ArrayList<>(byStripe.entrySet());
+        for (int i = 0; i < batches.size(); i++) {
+            try {
+                insertAll(batches.get(i).getKey(), batches.get(i).getValue(), res);
+            } catch (RuntimeException e) {
+                // insertAll admits all entries of the stripe or none, spilled values of the rest go back to the tier
+                if (secondTier != null) {
+                    for (int j = i; j < batches.size(); j++) {
+                        for (Map.Entry<K, V> entry : batches.get(j).getValue()) {
+                            if (!toLoad.contains(entry.getKey()))
+                                secondTier.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                throw e;
+            }
+        }
+        res.values().removeIf(Objects::isNull);
+        return res;
+    }
+
+    private long now() {
+        return timed ? ticker.getAsLong() : 0L;
+    }
+
+    /**
+     * Returns live node and records the access, null on miss.
+     * Expired nodes are left for the maintenance to remove.
+     */
+    private Node<K, V> lookup(Stripe<K, V> stripe, K key, long now) {
+        Node<K, V> node = stripe.map.get(key);
+        if (node == null || stripe.isExpired(node, now))
+            return null;
+        if (stripe.expireAfterAccessNanos > 0)
+            node.accessTime = now;
+        if (!stripe.bufferRead(node) && stripe.lock.tryLock()) {
+            // The buffer is filling up, replay it together with the rest of the maintenance,
+            // so that read-only workloads reclaim expired entries too
+            try {
+                stripe.maintenance(now);
+                stripe.onAccess(node);
+            } finally {
+                unlock(stripe);
+            }
+        }
+        return node;
+    }
+
+    private void load(Stripe<K, V> stripe, K key, ByKeySizeableLoader<K, ? extends V> loader, CompletableFuture<V> load) {
+        try {
+            // The previous load of this key could have finished between our miss and registration
+            Node<K, V> node = lookup(stripe, key, now());
+            load.complete(node != null ? node.value : loadThrough(stripe, key, loader));
+        } catch (Throwable t) {
+            load.completeExceptionally(t);
+        } finally {
+            stripe.loads.remove(key, load);
+        }
+    }
+
+    /**
+     * Second tier is consulted before the loader.
+     */
+    private V loadThrough(Stripe<K, V> stripe, K key, ByKeySizeableLoader<K, ? extends V> loader) {
+        V val = insertSpilled(stripe, key);
+        return val != null ? val : insert(stripe, key, load(key, loader));
+    }
+
+    /**
+     * Moves the value of the key from the second tier to memory, null if the tier does not have it.
+     * A value that can not be admitted goes back to the tier.
+     */
+    private V insertSpilled(Stripe<K, V> stripe, K key) {
+        V val = secondTier == null ? null : secondTier.take(key);
+        if (val == null)
+            return null;
+        try {
+            return insert(stripe, key, val);
+        } catch (RuntimeException e) {
+            secondTier.put(key, val);
+            throw e;
+        }
+    }
+
+    /**
+     * Calls the loader, recording the outcome. Null result counts as a failure.
+     */
+    private V load(K key, ByKeySizeableLoader<K, ? extends V> loader) {
+        long start = stats.startLoad();
+        V val;
+        try {
+            val = loader.load(key);
+        } catch (RuntimeException | Error e) {
+            stats.recordLoad(false, start);
+            throw e;
+        }
+        stats.recordLoad(val != null, start);
+        return val;
+    }
+
+    private Map<K, ? extends V> loadAll(Set<K> keys, BulkLoader<K, ? extends V> loader) {
+        long start = stats.startLoad();
+        Map<K, ? extends V> loaded;
+        try {
+            loaded = loader.loadAll(Collections.unmodifiableSet(keys));
+        } catch (RuntimeException | Error e) {
+            stats.recordLoad(false, start);
+            throw e;
+        }
+        stats.recordLoad(loaded != null, start);
+        return loaded == null ? Collections.emptyMap() : loaded;
+    }
+
+    private void refreshIfNeeded(Stripe<K, V> stripe, Node<K, V> node, ByKeySizeableLoader<K, ? extends V> loader, long now) {
+        if (refreshAfterWriteNanos == 0 || now - node.writeTime < refreshAfterWriteNanos || !node.startRefresh())
+            return;
+        try {
+            executor.execute(() -> refresh(stripe, node, loader));
+        } catch (RejectedExecutionException e) {
+            node.refreshing = 0;
+        }
+    }
+
+    /**
+     * Replaces the node with the reloaded value, unless it was removed or replaced meanwhile.
+     * On failure the old value stays and the next hit retries.
+     */
+    private void refresh(Stripe<K, V> stripe, Node<K, V> node, ByKeySizeableLoader<K, ? extends V> loader) {
+        V val;
+        try {
+            val = load(node.key, loader);
+        } catch (RuntimeException e) {
+            node.refreshing = 0;
+            return;
+        } catch (Error e) {
+            node.refreshing = 0;
+            throw e;
+        }
+        long size = val == null ? 0 : weigh(node.key, val);
+        if (size > stripe.capacityBytes && size <= budget.capacityBytes)
+            reserve(size);
+        stripe.lock.lock();
+        try {
+            long now = now();
+            stripe.maintenance(now);
+            if (node.retired)
+                return;
+            stripe.remove(node);
+            if (val != null && size <= budget.capacityBytes)
+                stripe.add(new Node<>(node.key, val, size, now));
+        } finally {
+            unlock(stripe);
+        }
+        evictOverflow(stripe);
+    }
+
+    private static <V> V await(CompletableFuture<V> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+    }
+
+    private V insert(Stripe<K, V> stripe, K key, V val) {
+        if (val == null)
+            return null;
+        long size = weigh(key, val);
+        if (size > stripe.capacityBytes && size <= budget.capacityBytes)
+            reserve(size);
+        stripe.lock.lock();
+        try {
+            long now = now();
+            stripe.maintenance(now);
+            Node<K, V> node = stripe.map.get(key);
+            if (node != null) {
+                if (!stripe.isExpired(node, now)) {
+                    stripe.onAccess(node);
+                    return node.value;
+                }
+                stripe.expire(node);
+            }
+            if (budget.capacityBytes < size)
+                throw new RuntimeException("Insufficient cache space.");
+            stripe.add(new Node<>(key, val, size, now));
+        } finally {
+            unlock(stripe);
+        }
+        evictOverflow(stripe);
+        return val;
+    }
+
+    @Override
+    public long weigh(K key, V val) {
+        long weight = weigher.weigh(key, val);
+        if (weight < 0)
+            throw new IllegalArgumentException("Weight must not be negative.");
+        return weight;
+    }
+
+    /**
+     * Same as {@link #insert} for a batch of entries of one stripe, with a single eviction pass after it.
+     * Values that lost the race to a concurrent insert are replaced in the result with the cached ones.
+     */
+    private void insertAll(Stripe<K, V> stripe, List<Map.Entry<K, V>> entries, Map<K, V> res) {
+        long[] sizes = new long[entries.size()];
+        long total = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = weigh(entries.get(i).getKey(), entries.get(i).getValue());
+            total += sizes[i];
+        }
+        if (total > stripe.capacityBytes)
+            reserve(Math.min(total, budget.capacityBytes));
+        stripe.lock.lock();
+        try {
+            for (long size : sizes) {
+                if (budget.capacityBytes < size)
+                    throw new RuntimeException("Insufficient cache space.");
+            }
+            long now = now();
+            stripe.maintenance(now);
+            for (int i = 0; i < sizes.length; i++) {
+                K key = entries.get(i).getKey();
+                V val = entries.get(i).getValue();
+                Node<K, V> node = stripe.map.get(key);
+                if (node != null) {
+                    if (!stripe.isExpired(node, now)) {
+                        stripe.onAccess(node);
+                        res.put(key, node.value);
+                        continue;
+                    }
+                    stripe.expire(node);
+                }
+                stripe.add(new Node<>(key, val, sizes[i], now));
+                res.put(key, val);
+            }
+        } finally {
+            unlock(stripe);
+        }
+        evictOverflow(stripe);
+    }
+
+    /**
+     * Called after a write to the stripe. While the cache is over capacity evicts the stripes that hold
+     * more than their share back to it, the written stripe last, so a large value just admitted
+     * pushes out entries that borrowed space elsewhere before its own neighbours.
+     */
+    private void evictOverflow(Stripe<K, V> written) {
+        for (int i = 0; i < stripes.length && budget.isExceeded(); i++) {
+            Stripe<K, V> stripe = stripes[i];
+            if (stripe != written && stripe.sizeBytes > stripe.capacityBytes)
+                evict(stripe);
+        }
+        if (budget.isExceeded())
+            evict(written);
+    }
+
+    private void evict(Stripe<K, V> stripe) {
+        stripe.lock.lock();
+        try {
+            stripe.evict();
+        } finally {
+            unlock(stripe);
+        }
+    }
+
+    /**
+     * Makes room for size bytes that do not fit the share of one stripe: stripes over their share are evicted
+     * back to it first, then every stripe in turn gives up its least valuable entry until the bytes fit.
+     */
+    private void reserve(long size) {
+        for (int i = 0; i < stripes.length && budget.isExceeded(size); i++) {
+            Stripe<K, V> stripe = stripes[i];
+            if (stripe.sizeBytes > stripe.capacityBytes) {
+                stripe.lock.lock();
+                try {
+                    stripe.evict(size);
+                } finally {
+                    unlock(stripe);
+                }
+            }
+        }
+        boolean evicted = true;
+        while (evicted && budget.isExceeded(size)) {
+            evicted = false;
+            for (int i = 0; i < stripes.length && budget.isExceeded(size); i++) {
+                Stripe<K, V> stripe = stripes[i];
+                if (stripe.sizeBytes == 0)
+                    continue;
+                stripe.lock.lock();
+                try {
+                    evicted |= stripe.evictOne();
+                } finally {
+                    unlock(stripe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases the stripe lock and only then spills the entries evicted under it to the second tier
+     * and hands them to the eviction listener.
+     */
+    private void unlock(Stripe<K, V> stripe) {
+        List<Node<K, V>> evicted = stripe.takeEvicted();
+        List<Node<K, V>> expired = stripe.takeExpired();
+        stripe.lock.unlock();
+        if (evicted != null && secondTier != null) {
+            for (Node<K, V> node : evicted)
+                secondTier.put(node.key, node.value);
+        }
+        if (evictionListener == null || (evicted == null && expired == null))
+            return;
+        if (evictionListenerExecutor == null) {
+            notifyEvicted(evicted, expired);
+            return;
+        }
+        try {
+            evictionListenerExecutor.execute(() -> notifyEvicted(evicted, expired));
+        } catch (RejectedExecutionException e) {
+            notifyEvicted(evicted, expired);
+        }
+    }
+
+    private void notifyEvicted(List<Node<K, V>> evicted, List<Node<K, V>> expired) {
+        if (evicted != null) {
+            for (Node<K, V> node : evicted)
+                evictionListener.onEviction(node.key, node.value, EvictionCause.SIZE);
+        }
+        if (expired != null) {
+            for (Node<K, V> node : expired)
+                evictionListener.onEviction(node.key, node.value, EvictionCause.EXPIRED);
+        }
+    }
+
+    @Override
+    public CacheStats stats() {
+        return stats.snapshot();
+    }
+
+    /**
+     * Weakly consistent snapshot, ordered by the time recency of the entries was last recorded.
+     */
+    @Override
+    public Iterable<Map.Entry<K, V>> fromLeastToMostRecentlyUsed() {
+        List<Node<K, V>> nodes = new ArrayList<>();
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                stripe.maintenance(now());
+                nodes.addAll(stripe.map.values());
+            } finally {
+                unlock(stripe);
+            }
+        }
+        nodes.sort(Comparator.comparingLong(node -> node.accessStamp));
+        List<Map.Entry<K, V>> entries = new ArrayList<>(nodes.size());
+        for (Node<K, V> node : nodes)
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(node.key, node.value));
+        return Collections.unmodifiableList(entries);
+    }
+
+    private Stripe<K, V> stripeFor(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return stripes[h & mask];
+    }
+
+    /**
+     * Cache entry as seen by an {@link EvictionPolicy}.
+     */
+    public static final class Node<K, V> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Node> REFRESHING = AtomicIntegerFieldUpdater.newUpdater(Node.class, "refreshing");
+
+        final K key;
+        final V value;
+        final long weight;
+        final long writeTime;
+        volatile long accessTime;
+        volatile int refreshing;
+
+        /* Guarded by the stripe lock */
+        Node<K, V> prev, next;
+        int queue;
+        long accessStamp;
+        long expiresAt;
+        Node<K, V> timerPrev, timerNext;
+        boolean retired;
+
+        Node(K key, V value, long weight, long writeTime) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = writeTime;
+            this.accessTime = writeTime;
+        }
+
+        public K key() {return key;}
+        public long weight() {return weight;}
+
+        @SuppressWarnings("unchecked")
+        boolean startRefresh() {
+            return refreshing == 0 && REFRESHING.compareAndSet(this, 0, 1);
+        }
+
+    }
+
+    /**
+     * Byte size and capacity of the cache as a whole, shared by its stripes
+     */
+    static final class Budget {
+
+        final AtomicLong sizeBytes = new AtomicLong();
+        volatile long capacityBytes;
+
+        boolean isExceeded() {
+            return isExceeded(0);
+        }
+
+        /**
+         * True if the cache can not take extra bytes more
+         */
+        boolean isExceeded(long extra) {
+            return sizeBytes.get() + extra > capacityBytes;
+        }
+
+    }
+
+    static final class Stripe<K, V> {
+
+        final ReentrantLock lock = new ReentrantLock();
+        final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<K, CompletableFuture<V>> loads = new ConcurrentHashMap<>();
+        final AtomicReferenceArray<Node<K, V>> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        final EvictionPolicy<K, V> policy;
+        final long expireAfterWriteNanos;
+        final long expireAfterAccessNanos;
+        final TimerWheel<K, V> timerWheel;
+        final Budget budget;
+
+        /* Guarded by lock, read without it by evictOverflow */
+        volatile long sizeBytes;
+        volatile long capacityBytes;
+        StatsCounter stats = StatsCounter.DISABLED;
+        boolean collectEvicted;
+        boolean collectExpired;
+        List<Node<K, V>> evicted;
+        List<Node<K, V>> expired;
+
+        /**
+         * Stripe of its own, bounded by its capacity alone
+         */
+        Stripe(EvictionPolicy<K, V> policy) {
+            this(policy, 0, 0, 0, new Budget());
+        }
+
+        Stripe(EvictionPolicy<K, V> policy, long expireAfterWriteNanos, long expireAfterAccessNanos, long now, Budget budget) {
+            this.policy = policy;
+            this.budget = budget;
+            this.expireAfterWriteNanos = expireAfterWriteNanos;
+            this.expireAfterAccessNanos = expireAfterAccessNanos;
+            this.timerWheel = expireAfterWriteNanos > 0 || expireAfterAccessNanos > 0 ? new TimerWheel<>(now) : null;
+        }
+
+        void setCapacity(long capacityBytes) {
+            this.capacityBytes = capacityBytes;
+            policy.setCapacity(capacityBytes);
+        }
+
+        boolean isExpired(Node<K, V> node, long now) {
+            return (expireAfterWriteNanos > 0 && now - node.writeTime >= expireAfterWriteNanos)
+                || (expireAfterAccessNanos > 0 && now - node.accessTime >= expireAfterAccessNanos);
+        }
+
+        private long expiresAt(Node<K, V> node) {
+            if (expireAfterAccessNanos == 0)
+                return node.writeTime + expireAfterWriteNanos;
+            long accessDeadline = node.accessTime + expireAfterAccessNanos;
+            if (expireAfterWriteNanos == 0)
+                return accessDeadline;
+            long writeDeadline = node.writeTime + expireAfterWriteNanos;
+            return writeDeadline - accessDeadline < 0 ? writeDeadline : accessDeadline;
+        }
+
+        /**
+         * Returns false if the slot is taken, so the buffer is filling up. The caller then replays it
+         * if nobody else does, otherwise the read is dropped.
+         */
+        boolean bufferRead(Node<K, V> node) {
+            int idx = ThreadLocalRandom.current().nextInt() & (READ_BUFFER_SIZE - 1);
+            return readBuffer.get(idx) == null && readBuffer.compareAndSet(idx, null, node);
+        }
+
+        /**
+         * Replays buffered reads and removes entries whose time has come.
+         */
+        void maintenance(long now) {
+            drainReadBuffer();
+            if (timerWheel != null) {
+                timerWheel.advance(now, node -> {
+                    if (!isExpired(node, now)) {
+                        // Accessed after it was scheduled
+                        node.expiresAt = expiresAt(node);
+                        return false;
+                    }
+                    expire(node);
+                    return true;
+                });
+            }
+        }
+
+        void drainReadBuffer() {
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                if (readBuffer.get(i) == null)
+                    continue;
+                Node<K, V> node = readBuffer.getAndSet(i, null);
+                if (node != null)
+                    onAccess(node);
+            }
+        }
+
+        void onAccess(Node<K, V> node) {
+            if (node.retired)
+                return;
+            node.accessStamp = System.nanoTime();
+            policy.onAccess(node);
+            if (timerWheel != null && expireAfterAccessNanos > 0) {
+                node.expiresAt = expiresAt(node);
+                timerWheel.reschedule(node);
+            }
+        }
+
+        void add(Node<K, V> node) {
+            node.accessStamp = System.nanoTime();
+            map.put(node.key, node);
+            sizeBytes += node.weight;
+            budget.sizeBytes.addAndGet(node.weight);
+            policy.onInsert(node);
+            if (timerWheel != null) {
+                node.expiresAt = expiresAt(node);
+                timerWheel.schedule(node);
+            }
+        }
+
+        void remove(Node<K, V> node) {
+            policy.onRemove(node);
+            retire(node);
+            sizeBytes -= node.weight;
+            budget.sizeBytes.addAndGet(-node.weight);
+        }
+
+        void expire(Node<K, V> node) {
+            remove(node);
+            stats.recordEviction(EvictionCause.EXPIRED, node.weight);
+            if (collectExpired) {
+                if (expired == null)
+                    expired = new ArrayList<>();
+                expired.add(node);
+            }
+        }
+
+        void evict() {
+            evict(0);
+        }
+
+        /**
+         * Evicts down to the capacity of the stripe, but only while the cache as a whole can not take reserve bytes more
+         */
+        void evict(long reserve) {
+            while (sizeBytes > capacityBytes && budget.isExceeded(reserve)) {
+                if (!evictOne())
+                    break;
+            }
+        }
+
+        /**
+         * Evicts the node chosen by the policy, false if there is none
+         */
+        boolean evictOne() {
+            Node<K, V> victim = policy.evict();
+            if (victim == null)
+                return false;
+            retire(victim);
+            sizeBytes -= victim.weight;
+            budget.sizeBytes.addAndGet(-victim.weight);
+            stats.recordEviction(EvictionCause.SIZE, victim.weight);
+            if (collectEvicted) {
+                if (evicted == null)
+                    evicted = new ArrayList<>();
+                evicted.add(victim);
+            }
+            return true;
+        }
+
+        List<Node<K, V>> takeEvicted() {
+            List<Node<K, V>> res = evicted;
+            evicted = null;
+            return res;
+        }
+
+        List<Node<K, V>> takeExpired() {
+            List<Node<K, V>> res = expired;
+            expired = null;
+            return res;
+        }
+
+        private void retire(Node<K, V> node) {
+            node.retired = true;
+            map.remove(node.key, node);
+            if (timerWheel != null)
+                timerWheel.deschedule(node);
+        }
+
+    }
+
+}
@@ -0,0 +1,180 @@
+package org.texhnolyzze.common;
+
+import org.texhnolyzze.common.ConcurrentLRUCache.Node;
+
+/**
+ * Decides which entries of a {@link ConcurrentLRUCache} stripe are evicted when it runs out of space.
+ * Every stripe owns its own instance, all methods are called under the stripe lock.
+ *
+ * @author Texhnolyze
+ * @param <K> key
+ * @param <V> value
+ */
+public interface EvictionPolicy<K, V> {
+
+    /**
+     * Called whenever the byte budget of the stripe changes.
+     */
+    void setCapacity(long capacityBytes);
+
+    void onInsert(Node<K, V> node);
+    void onAccess(Node<K, V> node);
+
+    /**
+     * Called when the cache drops the node by itself, not by the request of the policy.
+     */
+    void onRemove(Node<K, V> node);
+
+    /**
+     * Unlinks and returns the next node to be evicted, null if the policy tracks no nodes.
+     * The cache calls it until the stripe fits its budget again.
+     */
+    Node<K, V> evict();
+
+    static <K, V> EvictionPolicy<K, V> lru() {
+        return new Lru<>();
+    }
+
+    static <K, V> EvictionPolicy<K, V> tinyLfu() {
+        return new TinyLfu<>();
+    }
+
+    /**
+     * Plain least recently used order.
+     */
+    final class Lru<K, V> implements EvictionPolicy<K, V> {
+
+        private final NodeDeque<K, V> deque = new NodeDeque<>();
+
+        Lru() {}
+
+        @Override public void setCapacity(long capacityBytes) {}
+        @Override public void onInsert(Node<K, V> node) {deque.linkLast(node);}
+        @Override public void onAccess(Node<K, V> node) {deque.moveToTail(node);}
+        @Override public void onRemove(Node<K, V> node) {deque.unlink(node);}
+
+        @Override
+        public Node<K, V> evict() {
+            Node<K, V> victim = deque.head;
+            if (victim != null)
+                deque.unlink(victim);
+            return victim;
+        }
+
+    }
+
+    /**
+     * W-TinyLFU. New entries land in a small LRU admission window (1% of the budget).
+     * An entry pushed out of the window has to compete with the least valuable entry of the main
+     * space, and is admitted only if a {@link FrequencySketch} says it is requested more often.
+     * The main space is a segmented LRU: entries hit while in probation are promoted to the
+     * protected segment (80% of the main space), so a scan over cold keys only churns
+     * the window and probation and never reaches the hot working set.
+     */
+    final class TinyLfu<K, V> implements EvictionPolicy<K, V> {
+
+        private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+        private final NodeDeque<K, V> window = new NodeDeque<>();
+        private final NodeDeque<K, V> probation = new NodeDeque<>();
+        private final NodeDeque<K, V> protectedDeque = new NodeDeque<>();
+        private final FrequencySketch sketch = new FrequencySketch();
+
+        private long windowMax;
+        private long protectedMax;
+        private long count;
+
+        TinyLfu() {}
+
+        @Override
+        public void setCapacity(long capacityBytes) {
+            windowMax = capacityBytes / 100;
+            protectedMax = (capacityBytes - windowMax) * 4 / 5;
+            while (protectedDeque.weight > protectedMax)
+                demote();
+        }
+
+        @Override
+        public void onInsert(Node<K, V> node) {
+            if (++count > sketch.capacity())
+                sketch.ensureCapacity(2 * count);
+            sketch.increment(node.key);
+            node.queue = WINDOW;
+            window.linkLast(node);
+        }
+
+        @Override
+        public void onAccess(Node<K, V> node) {
+            sketch.increment(node.key);
+            switch (node.queue) {
+                case WINDOW:
+                    window.moveToTail(node);
+                    break;
+                case PROBATION:
+                    probation.unlink(node);
+                    node.queue = PROTECTED;
+                    protectedDeque.linkLast(node);
+                    while (protectedDeque.weight > protectedMax)
+                        demote();
+                    break;
+                default:
+                    protectedDeque.moveToTail(node);
+            }
+        }
+
+        @Override
+        public void onRemove(Node<K, V> node) {
+            count--;
+            dequeOf(node).unlink(node);
+        }
+
+        @Override
+        public Node<K, V> evict() {
+            for (;;) {
+                Node<K, V> candidate = window.weight > windowMax ? window.head : null;
+                Node<K, V> victim = probation.head != null ? probation.head : protectedDeque.head;
+                if (candidate == null) {
+                    Node<K, V> evicted = victim != null ? victim : window.head;
+                    if (evicted != null)
+                        onRemove(evicted);
+                    return evicted;
+                }
+                if (victim == null) {
+                    // Nothing to compete with, the main space is simply filled up
+                    admit(candidate);
+                    continue;
+                }
+                if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                    admit(candidate);
+                    onRemove(victim);
+                    return victim;
+                }
+                onRemove(candidate);
+                return candidate;
+            }
+        }
+
+        private void admit(Node<K, V> candidate) {
+            window.unlink(candidate);
+            candidate.queue = PROBATION;
+            probation.linkLast(candidate);
+        }
+
+        private void demote() {
+            Node<K, V> node = protectedDeque.head;
+            protectedDeque.unlink(node);
+            node.queue = PROBATION;
+            probation.linkLast(node);
+        }
+
+        private NodeDeque<K, V> dequeOf(Node<K, V> node) {
+            switch (node.queue) {
+                case WINDOW: return window;
+                case PROBATION: return probation;
+                default: return protectedDeque;
+            }
+        }
+
+    }
+
+}
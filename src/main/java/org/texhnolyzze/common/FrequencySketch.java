@@ -0,0 +1,96 @@
+package org.texhnolyzze.common;
+
+/**
+ * Count-min sketch with 4-bit counters used by {@link EvictionPolicy.TinyLfu} to estimate
+ * how often a key was requested recently. Each long holds sixteen counters; an item
+ * is hashed into four of them. Once the number of increments reaches ten times
+ * the expected number of items all counters are halved, so that old popularity fades.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private long[] table = new long[0];
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    /**
+     * Grows the sketch so that it can tell apart about expectedItems keys. The table only ever doubles
+     * and every counter is copied to all the slots its keys map to in the larger table,
+     * so the collected statistics survive growing.
+     */
+    void ensureCapacity(long expectedItems) {
+        int maximum = (int) Math.min(Math.max(expectedItems, 1), Integer.MAX_VALUE >>> 2);
+        if (table.length >= maximum)
+            return;
+        long[] grown = new long[Math.max(Integer.highestOneBit(maximum - 1) << 1, 8)];
+        for (int i = 0; table.length > 0 && i < grown.length; i += table.length)
+            System.arraycopy(table, 0, grown, i, table.length);
+        table = grown;
+        tableMask = table.length - 1;
+        sampleSize = 10 * maximum;
+    }
+
+    int capacity() {
+        return table.length;
+    }
+
+    int frequency(Object item) {
+        int hash = spread(item.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(Object item) {
+        int hash = spread(item.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++)
+            added |= incrementAt(indexOf(hash, i), start + i);
+        if (added && ++size == sampleSize)
+            reset();
+    }
+
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = 0xfL << offset;
+        if ((table[i] & mask) != mask) {
+            table[i] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (odd >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEEDS[i]) * SEEDS[i];
+        hash += (hash >>> 32);
+        return ((int) hash) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+}
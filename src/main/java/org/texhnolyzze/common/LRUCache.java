@@ -1,10 +1,17 @@
 package org.texhnolyzze.common;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractMap;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
 
 /**
  *
@@ -18,11 +25,53 @@ public interface LRUCache<K, V extends LRUCache.Sizeable> {
         long getSizeBytes();
     }
 
+    /**
+     * Binary form of keys or values for the caches storing them outside of the java heap.
+     */
+    interface Codec<T> {
+        void write(T value, DataOutput out) throws IOException;
+        T read(DataInput in) throws IOException;
+    }
+
     @FunctionalInterface
     interface ByKeySizeableLoader<K, V extends Sizeable> {
         V load(K key);
     }
     
+    /**
+     * Loads all the missing keys in one call. Keys absent from the result are not cached.
+     */
+    @FunctionalInterface
+    interface BulkLoader<K, V extends Sizeable> {
+        Map<K, ? extends V> loadAll(Set<K> keys);
+    }
+    
+    /**
+     * Weight of an entry in bytes. Caches evaluate it once, when the entry is admitted.
+     */
+    @FunctionalInterface
+    interface Weigher<K, V> {
+        
+        long weigh(K key, V value);
+        
+        static <K, V extends Sizeable> Weigher<K, V> sizeable() {
+            return (key, value) -> value.getSizeBytes();
+        }
+        
+    }
+    
+    enum EvictionCause {
+        /* Pushed out for lack of space */
+        SIZE,
+        /* Its time to live has passed */
+        EXPIRED
+    }
+    
+    @FunctionalInterface
+    interface EvictionListener<K, V> {
+        void onEviction(K key, V value, EvictionCause cause);
+    }
+    
     long getSizeBytes();
     long getMaxCapacityBytes();
     void setMaxCapacity(long capacityBytes);
@@ -31,74 +80,277 @@ public interface LRUCache<K, V extends LRUCache.Sizeable> {
     V getIfPresentOrLoad(K key, ByKeySizeableLoader<K, ? extends V> loader);
     Iterable<Map.Entry<K, V>> fromLeastToMostRecentlyUsed();
     
+    /**
+     * Weight the cache would admit the entry with, the size of the value unless the cache has its own {@link Weigher}.
+     */
+    default long weigh(K key, V value) {
+        return value.getSizeBytes();
+    }
+    
+    /**
+     * Snapshot of the counters, empty unless the cache was built with {@link LRUCacheBuilder#recordStats()}.
+     */
+    default CacheStats stats() {
+        return CacheStats.EMPTY;
+    }
+    
+    /**
+     * Returns the cached values of the keys, in the order of the keys.
+     */
+    default Map<K, V> getAllIfPresent(Iterable<K> keys) {
+        Map<K, V> res = new LinkedHashMap<>();
+        for (K key : keys) {
+            V val = getIfPresent(key);
+            if (val != null)
+                res.put(key, val);
+        }
+        return res;
+    }
+    
+    /**
+     * Returns the values of the keys, in the order of the keys, passing all the missing ones to the loader at once.
+     */
+    default Map<K, V> getAllOrLoad(Iterable<K> keys, BulkLoader<K, ? extends V> loader) {
+        Map<K, V> res = new LinkedHashMap<>();
+        Set<K> missing = new LinkedHashSet<>();
+        for (K key : keys) {
+            V val = getIfPresent(key);
+            res.put(key, val);
+            if (val == null)
+                missing.add(key);
+        }
+        if (!missing.isEmpty()) {
+            Map<K, ? extends V> loaded = loader.loadAll(Collections.unmodifiableSet(missing));
+            for (K key : missing) {
+                V val = loaded.get(key);
+                res.put(key, val == null ? null : getIfPresentOrLoad(key, k -> val));
+            }
+        }
+        res.values().removeIf(Objects::isNull);
+        return res;
+    }
+    
     static <K, V extends Sizeable> LRUCache<K, V> defaultImpl(long capacityBytes) {
-        return new LRUCacheImpl<>(capacityBytes);
+        return new LRUCacheImpl<>(capacityBytes, Weigher.sizeable(), null);
     }
     
+    static <K, V extends Sizeable> LRUCache<K, V> defaultImpl(long capacityBytes, Weigher<? super K, ? super V> weigher) {
+        return new LRUCacheImpl<>(capacityBytes, Objects.requireNonNull(weigher), null);
+    }
+    
+    /**
+     * Entries evicted for lack of space are spilled to the second tier,
+     * misses look there before calling the loader.
+     */
+    static <K, V extends Sizeable> LRUCache<K, V> defaultImpl(long capacityBytes, MappedDiskTier<K, V> secondTier) {
+        return new LRUCacheImpl<>(capacityBytes, Weigher.sizeable(), Objects.requireNonNull(secondTier));
+    }
+    
+    /**
+     * Thread-safe cache, see {@link ConcurrentLRUCache}.
+     * Capacity is split evenly between concurrencyLevel (rounded up to a power of two) stripes,
+     * a stripe borrows unused space of the others, so a single value can be as large as the whole capacity.
+     */
+    static <K, V extends Sizeable> LRUCache<K, V> concurrentImpl(long capacityBytes) {
+        return LRUCache.<K, V>builder(capacityBytes).build();
+    }
+    
+    static <K, V extends Sizeable> LRUCache<K, V> concurrentImpl(long capacityBytes, int concurrencyLevel) {
+        return LRUCache.<K, V>builder(capacityBytes).concurrencyLevel(concurrencyLevel).build();
+    }
+    
+    /**
+     * Thread-safe cache keeping serialized values off heap, see {@link OffHeapLRUCache}.
+     * Direct memory grows with the cache up to the capacity and is given back only when the capacity is lowered.
+     */
+    static <K, V extends Sizeable> LRUCache<K, V> offHeapImpl(long capacityBytes, Codec<V> codec) {
+        return new OffHeapLRUCache<>(capacityBytes, ConcurrentLRUCache.defaultConcurrencyLevel(), OffHeapLRUCache.DEFAULT_PAGE_SIZE, codec);
+    }
+    
+    static <K, V extends Sizeable> LRUCache<K, V> offHeapImpl(long capacityBytes, int concurrencyLevel, int pageSize, Codec<V> codec) {
+        return new OffHeapLRUCache<>(capacityBytes, concurrencyLevel, pageSize, codec);
+    }
+    
+    static <K, V extends Sizeable> LRUCacheBuilder<K, V> builder(long capacityBytes) {
+        return new LRUCacheBuilder<>(capacityBytes);
+    }
+    
+    /**
+     * Every entry keeps the weight it was admitted with, so evictions never ask the value again
+     * and the accounting stays exact even if the size of the value changes later.
+     */
     class LRUCacheImpl<K, V extends Sizeable> implements LRUCache<K, V> {
 
         private long sizeBytes;
         private long capacityBytes;
-        private final LinkedHashMap<K, V> map = new LinkedHashMap<>();
+        private final LinkedHashMap<K, Weighted<V>> map = new LinkedHashMap<>();
+        private final Weigher<? super K, ? super V> weigher;
+        private final MappedDiskTier<K, V> secondTier;
         
-        LRUCacheImpl(long capacityBytes) {
+        LRUCacheImpl(long capacityBytes, Weigher<? super K, ? super V> weigher, MappedDiskTier<K, V> secondTier) {
             this.capacityBytes = capacityBytes;
+            this.weigher = weigher;
+            this.secondTier = secondTier;
         }
         
         @Override public long getSizeBytes() {return sizeBytes;}
         @Override public long getMaxCapacityBytes() {return capacityBytes;}
 
+        /**
+         * Shrinking evicts in one pass from the least recently used end.
+         */
         @Override
         public void setMaxCapacity(long capacityBytes) {
             if (capacityBytes <= 0)
                 throw new IllegalArgumentException("Capacity must be greater than 0.");
             this.capacityBytes = capacityBytes;
-            Iterator<Entry<K, V>> it = map.entrySet().iterator();
-            while (sizeBytes > capacityBytes) {
-                V v = it.next().getValue();
-                sizeBytes -= v.getSizeBytes();
-                it.remove();
-            }
+            evictUntil(0);
         }
 
         @Override
         public V getIfPresent(K key) {
-            V val = map.get(key);
-            if (val != null) {
-                map.remove(key);
-                map.put(key, val);
+            Weighted<V> w = map.remove(key);
+            if (w != null) {
+                map.put(key, w);
+                return w.value;
             }
-            return val;
+            if (secondTier != null) {
+                V spilled = secondTier.get(key);
+                if (spilled != null)
+                    return admit(key, spilled, true);
+            }
+            return null;
         }
         
         @Override
         public V getIfPresentOrLoad(K key, ByKeySizeableLoader<K, ? extends V> loader) {
-            V val = map.get(key);
-            if (val != null) {
-                map.remove(key);
-                map.put(key, val);
-            } else {
-                val = loader.load(key);
-                if (val == null)
-                    return null;
-                long size = val.getSizeBytes();
-                if (capacityBytes < size)
-                    throw new RuntimeException("Insufficient cache space.");
-                Iterator<Entry<K, V>> it = map.entrySet().iterator();
-                while (sizeBytes + size > capacityBytes) {
-                    V v = it.next().getValue();
-                    sizeBytes -= v.getSizeBytes();
-                    it.remove();
-                }
-                sizeBytes += val.getSizeBytes();
-                map.put(key, val);
-            }                
+            Weighted<V> w = map.remove(key);
+            if (w != null) {
+                map.put(key, w);
+                return w.value;
+            }
+            V spilled = secondTier == null ? null : secondTier.get(key);
+            if (spilled != null)
+                return admit(key, spilled, true);
+            V val = loader.load(key);
+            return val == null ? null : admit(key, val, false);
+        }
+
+        /**
+         * A spilled value leaves the second tier only once it passes the capacity check.
+         */
+        private V admit(K key, V val, boolean spilled) {
+            Weighted<V> w = weighted(key, val);
+            if (capacityBytes < w.weight)
+                throw new RuntimeException("Insufficient cache space.");
+            if (spilled)
+                secondTier.take(key);
+            evictUntil(w.weight);
+            sizeBytes += w.weight;
+            map.put(key, w);
             return val;
         }
         
         @Override
         public Iterable<Map.Entry<K, V>> fromLeastToMostRecentlyUsed() {
-            return Collections.unmodifiableSet(map.entrySet());
+            return () -> new Iterator<>() {
+                
+                final Iterator<Entry<K, Weighted<V>>> it = map.entrySet().iterator();
+                
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+                
+                @Override
+                public Entry<K, V> next() {
+                    Entry<K, Weighted<V>> e = it.next();
+                    return new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().value);
+                }
+                
+            };
+        }
+        
+        /**
+         * Loaded entries are inserted together, then evicted for in one pass.
+         */
+        @Override
+        public Map<K, V> getAllOrLoad(Iterable<K> keys, BulkLoader<K, ? extends V> loader) {
+            Map<K, V> res = new LinkedHashMap<>();
+            Set<K> missing = new LinkedHashSet<>();
+            for (K key : keys) {
+                Weighted<V> w = map.get(key);
+                V val = w != null ? w.value : secondTier != null ? secondTier.get(key) : null;
+                res.put(key, val);
+                if (val == null)
+                    missing.add(key);
+            }
+            Map<K, ? extends V> loaded = missing.isEmpty() ? Collections.emptyMap() : loader.loadAll(Collections.unmodifiableSet(missing));
+            Map<K, Weighted<V>> admitted = new LinkedHashMap<>();
+            for (Entry<K, V> e : res.entrySet()) {
+                K key = e.getKey();
+                Weighted<V> w = map.get(key);
+                if (w == null) {
+                    V val = e.getValue() != null ? e.getValue() : loaded.get(key);
+                    if (val == null)
+                        continue;
+                    w = weighted(key, val);
+                    if (capacityBytes < w.weight)
+                        throw new RuntimeException("Insufficient cache space.");
+                    e.setValue(val);
+                }
+                admitted.put(key, w);
+            }
+            for (Entry<K, Weighted<V>> e : admitted.entrySet()) {
+                K key = e.getKey();
+                if (map.remove(key) == null) {
+                    if (secondTier != null)
+                        secondTier.take(key);
+                    sizeBytes += e.getValue().weight;
+                }
+                map.put(key, e.getValue());
+            }
+            evictUntil(0);
+            res.values().removeIf(Objects::isNull);
+            return res;
+        }
+        
+        @Override
+        public long weigh(K key, V val) {
+            long weight = weigher.weigh(key, val);
+            if (weight < 0)
+                throw new IllegalArgumentException("Weight must not be negative.");
+            return weight;
+        }
+        
+        private Weighted<V> weighted(K key, V val) {
+            return new Weighted<>(val, weigh(key, val));
+        }
+        
+        /**
+         * Evicts least recently used entries until there is room for extra bytes.
+         */
+        private void evictUntil(long extra) {
+            Iterator<Entry<K, Weighted<V>>> it = map.entrySet().iterator();
+            while (sizeBytes + extra > capacityBytes) {
+                Entry<K, Weighted<V>> e = it.next();
+                sizeBytes -= e.getValue().weight;
+                it.remove();
+                if (secondTier != null)
+                    secondTier.put(e.getKey(), e.getValue().value);
+            }
+        }
+        
+        private static final class Weighted<V> {
+            
+            final V value;
+            final long weight;
+            
+            Weighted(V value, long weight) {
+                this.value = value;
+                this.weight = weight;
+            }
+            
         }
         
     }
@@ -0,0 +1,166 @@
+package org.texhnolyzze.common;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Configures {@link ConcurrentLRUCache}.
+ *
+ * @author Texhnolyze
+ * @param <K> key
+ * @param <V> value
+ */
+public class LRUCacheBuilder<K, V extends LRUCache.Sizeable> {
+
+    final long capacityBytes;
+    int concurrencyLevel = ConcurrentLRUCache.defaultConcurrencyLevel();
+    boolean singleFlightLoading;
+    Supplier<? extends EvictionPolicy<K, V>> evictionPolicy = EvictionPolicy::lru;
+    long expireAfterWriteNanos;
+    long expireAfterAccessNanos;
+    long refreshAfterWriteNanos;
+    Executor executor = ForkJoinPool.commonPool();
+    LongSupplier ticker = System::nanoTime;
+    MappedDiskTier<K, V> secondTier;
+    LRUCache.Weigher<? super K, ? super V> weigher = LRUCache.Weigher.sizeable();
+    boolean recordStats;
+    LRUCache.EvictionListener<? super K, ? super V> evictionListener;
+    Executor evictionListenerExecutor;
+
+    LRUCacheBuilder(long capacityBytes) {
+        if (capacityBytes <= 0)
+            throw new IllegalArgumentException("Capacity must be greater than 0.");
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * Number of stripes (rounded up to a power of two) the capacity is split between.
+     * A stripe may hold more than its share while the whole cache fits the capacity,
+     * so the only limit on a single value is the capacity itself: larger values are rejected
+     * with "Insufficient cache space.".
+     */
+    public LRUCacheBuilder<K, V> concurrencyLevel(int concurrencyLevel) {
+        if (concurrencyLevel <= 0)
+            throw new IllegalArgumentException("Concurrency level must be greater than 0.");
+        this.concurrencyLevel = concurrencyLevel;
+        return this;
+    }
+
+    /**
+     * Concurrent misses on the same key share one call of the loader,
+     * the rest of the callers wait for its result.
+     */
+    public LRUCacheBuilder<K, V> singleFlightLoading() {
+        this.singleFlightLoading = true;
+        return this;
+    }
+
+    /**
+     * Policy is instantiated once per stripe, {@link EvictionPolicy#lru()} by default.
+     */
+    public LRUCacheBuilder<K, V> evictionPolicy(Supplier<? extends EvictionPolicy<K, V>> evictionPolicy) {
+        this.evictionPolicy = Objects.requireNonNull(evictionPolicy);
+        return this;
+    }
+
+    /**
+     * Entry is dropped once this time has passed since it was loaded.
+     */
+    public LRUCacheBuilder<K, V> expireAfterWrite(long duration, TimeUnit unit) {
+        this.expireAfterWriteNanos = toPositiveNanos(duration, unit);
+        return this;
+    }
+
+    /**
+     * Entry is dropped once this time has passed since it was loaded or last read.
+     */
+    public LRUCacheBuilder<K, V> expireAfterAccess(long duration, TimeUnit unit) {
+        this.expireAfterAccessNanos = toPositiveNanos(duration, unit);
+        return this;
+    }
+
+    /**
+     * First hit through {@link LRUCache#getIfPresentOrLoad} after this time has passed since the entry
+     * was loaded reloads it on the {@link #executor} with the same loader. Readers keep getting
+     * the old value until the reload completes; if it fails, the old value stays.
+     */
+    public LRUCacheBuilder<K, V> refreshAfterWrite(long duration, TimeUnit unit) {
+        this.refreshAfterWriteNanos = toPositiveNanos(duration, unit);
+        return this;
+    }
+
+    /**
+     * Executor for background work, {@link ForkJoinPool#commonPool()} by default.
+     */
+    public LRUCacheBuilder<K, V> executor(Executor executor) {
+        this.executor = Objects.requireNonNull(executor);
+        return this;
+    }
+
+    /**
+     * Time source in nanoseconds, {@link System#nanoTime()} by default.
+     */
+    public LRUCacheBuilder<K, V> ticker(LongSupplier ticker) {
+        this.ticker = Objects.requireNonNull(ticker);
+        return this;
+    }
+
+    /**
+     * Entries evicted for lack of space are spilled to the tier, misses look there before calling the loader.
+     */
+    public LRUCacheBuilder<K, V> secondTier(MappedDiskTier<K, V> secondTier) {
+        this.secondTier = Objects.requireNonNull(secondTier);
+        return this;
+    }
+
+    /**
+     * Weight of an entry, evaluated once when it is admitted, {@link LRUCache.Sizeable#getSizeBytes()} by default.
+     */
+    public LRUCacheBuilder<K, V> weigher(LRUCache.Weigher<? super K, ? super V> weigher) {
+        this.weigher = Objects.requireNonNull(weigher);
+        return this;
+    }
+
+    /**
+     * Counts hits, misses, loads and evictions, see {@link LRUCache#stats()}.
+     */
+    public LRUCacheBuilder<K, V> recordStats() {
+        this.recordStats = true;
+        return this;
+    }
+
+    /**
+     * Listener is called with entries evicted for lack of space or expired, on the thread
+     * that caused the eviction, after the stripe lock is released.
+     */
+    public LRUCacheBuilder<K, V> evictionListener(LRUCache.EvictionListener<? super K, ? super V> listener) {
+        this.evictionListener = Objects.requireNonNull(listener);
+        this.evictionListenerExecutor = null;
+        return this;
+    }
+
+    /**
+     * Listener is called on the executor, one task per batch of entries evicted under one lock acquisition,
+     * so a slow listener never delays the caller.
+     */
+    public LRUCacheBuilder<K, V> evictionListener(LRUCache.EvictionListener<? super K, ? super V> listener, Executor executor) {
+        this.evictionListener = Objects.requireNonNull(listener);
+        this.evictionListenerExecutor = Objects.requireNonNull(executor);
+        return this;
+    }
+
+    private static long toPositiveNanos(long duration, TimeUnit unit) {
+        if (duration <= 0)
+            throw new IllegalArgumentException("Duration must be greater than 0.");
+        return unit.toNanos(duration);
+    }
+
+    public ConcurrentLRUCache<K, V> build() {
+        return new ConcurrentLRUCache<>(this);
+    }
+
+}
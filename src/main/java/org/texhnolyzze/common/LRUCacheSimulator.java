@@ -0,0 +1,109 @@
+package org.texhnolyzze.common;
+
+import org.texhnolyzze.common.ConcurrentLRUCache.Node;
+import org.texhnolyzze.common.ConcurrentLRUCache.Stripe;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Replays a trace of requested keys against an {@link EvictionPolicy} and reports the hit rate it would give.
+ * The replay drives a single cache stripe directly, so every request is seen by the policy in order.
+ * <br>
+ * From the command line: {@code LRUCacheSimulator <trace file> <capacity bytes>}, where every line
+ * of the trace is a key optionally followed by the size of its value (1 by default).
+ *
+ * @author Texhnolyze
+ */
+public final class LRUCacheSimulator {
+
+    private LRUCacheSimulator() {}
+
+    public static <K> Result simulate(
+        Iterable<? extends K> trace,
+        ToLongFunction<? super K> weigher,
+        long capacityBytes,
+        Supplier<? extends EvictionPolicy<K, LRUCache.Sizeable>> policy
+    ) {
+        if (capacityBytes <= 0)
+            throw new IllegalArgumentException("Capacity must be greater than 0.");
+        Stripe<K, LRUCache.Sizeable> stripe = new Stripe<>(policy.get());
+        stripe.setCapacity(capacityBytes);
+        Result res = new Result();
+        for (K key : trace) {
+            long weight = weigher.applyAsLong(key);
+            res.requests++;
+            res.requestedBytes += weight;
+            Node<K, LRUCache.Sizeable> node = stripe.map.get(key);
+            if (node != null) {
+                res.hits++;
+                res.hitBytes += weight;
+                stripe.onAccess(node);
+            } else if (weight <= capacityBytes) {
+                stripe.add(new Node<>(key, () -> weight, weight, 0));
+                stripe.evict();
+            }
+        }
+        return res;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: LRUCacheSimulator <trace file> <capacity bytes>");
+            return;
+        }
+        long capacityBytes = Long.parseLong(args[1]);
+        Map<String, Long> weights = new HashMap<>();
+        List<String> trace = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                String[] parts = line.split("\\s+");
+                String key = parts[0];
+                weights.put(key, parts.length > 1 ? Long.parseLong(parts[1]) : 1L);
+                trace.add(key);
+            }
+        }
+        ToLongFunction<String> weigher = weights::get;
+        System.out.println("LRU:     " + simulate(trace, weigher, capacityBytes, EvictionPolicy::lru));
+        System.out.println("TinyLFU: " + simulate(trace, weigher, capacityBytes, EvictionPolicy::tinyLfu));
+    }
+
+    public static final class Result {
+
+        private long requests, hits;
+        private long requestedBytes, hitBytes;
+
+        private Result() {}
+
+        public long requests() {return requests;}
+        public long hits() {return hits;}
+
+        public double hitRate() {
+            return requests == 0 ? 1.0 : (double) hits / requests;
+        }
+
+        public double byteHitRate() {
+            return requestedBytes == 0 ? 1.0 : (double) hitBytes / requestedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d, hits=%d, hitRate=%.4f, byteHitRate=%.4f", requests, hits, hitRate(), byteHitRate());
+        }
+
+    }
+
+}
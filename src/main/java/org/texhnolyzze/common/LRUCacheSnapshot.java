@@ -0,0 +1,314 @@
+package org.texhnolyzze.common;
+
+import org.texhnolyzze.common.LRUCache.ByKeySizeableLoader;
+import org.texhnolyzze.common.LRUCache.Codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warm start of an {@link LRUCache} across restarts. {@link #write} streams the recency order of the cache
+ * (keys only, or keys with values) to a file, most recently used entry first; {@link #restore} replays
+ * it into an empty cache, so the hottest entries are back before the cold ones.
+ * <br>
+ * File layout: int magic, int version, byte 1 if values are present, then records
+ * int key length, key, [int value length, value], terminated by a key length of -1.
+ * A file without the terminator (e.g. cut short by a crash) is restored up to its last whole record.
+ *
+ * @author Texhnolyze
+ */
+public final class LRUCacheSnapshot {
+
+    private static final int MAGIC = 0x4C525553;
+    private static final int VERSION = 1;
+    private static final int END = -1;
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    private LRUCacheSnapshot() {}
+
+    /**
+     * Writes the keys. The file is replaced atomically once it is complete.
+     */
+    public static <K, V extends LRUCache.Sizeable> void write(LRUCache<K, V> cache, Path file, Codec<K> keyCodec) throws IOException {
+        write(cache, file, keyCodec, null);
+    }
+
+    /**
+     * Writes the keys and their values, a restore then does not need the loader.
+     */
+    public static <K, V extends LRUCache.Sizeable> void write(
+        LRUCache<K, V> cache,
+        Path file,
+        Codec<K> keyCodec,
+        Codec<V> valueCodec
+    ) throws IOException {
+        List<Map.Entry<K, V>> entries = new ArrayList<>();
+        for (Map.Entry<K, V> e : cache.fromLeastToMostRecentlyUsed())
+            entries.add(e);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        OffHeapLRUCache.Scratch scratch = new OffHeapLRUCache.Scratch();
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            buf.putInt(MAGIC).putInt(VERSION).put((byte) (valueCodec != null ? 1 : 0));
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                Map.Entry<K, V> e = entries.get(i);
+                scratch.reset();
+                keyCodec.write(e.getKey(), scratch.out);
+                scratch.out.flush();
+                put(ch, buf, scratch);
+                if (valueCodec != null) {
+                    scratch.reset();
+                    valueCodec.write(e.getValue(), scratch.out);
+                    scratch.out.flush();
+                    put(ch, buf, scratch);
+                }
+            }
+            ensureRemaining(ch, buf, 4);
+            buf.putInt(END);
+            flush(ch, buf);
+            ch.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores a snapshot written with values. See {@link #restore(LRUCache, Path, Codec, ByKeySizeableLoader, Executor, int)}.
+     */
+    public static <K, V extends LRUCache.Sizeable> int restore(
+        LRUCache<K, V> cache,
+        Path file,
+        Codec<K> keyCodec,
+        Codec<V> valueCodec
+    ) throws IOException, InterruptedException {
+        return restore(cache, file, keyCodec, valueCodec, null, Runnable::run, 1);
+    }
+
+    /**
+     * Restores a snapshot of keys, loading up to parallelism values at once on the executor.
+     * See {@link #restore(LRUCache, Path, Codec, Codec, ByKeySizeableLoader, Executor, int)}.
+     */
+    public static <K, V extends LRUCache.Sizeable> int restore(
+        LRUCache<K, V> cache,
+        Path file,
+        Codec<K> keyCodec,
+        ByKeySizeableLoader<K, ? extends V> loader,
+        Executor executor,
+        int parallelism
+    ) throws IOException, InterruptedException {
+        return restore(cache, file, keyCodec, null, loader, executor, parallelism);
+    }
+
+    /**
+     * Replays the snapshot from the hottest entry down. Values stored in the file are used as is, the rest go to
+     * the loader; loads run in parallel and failed or null loads are skipped. No more keys are dispatched once
+     * the loaded values, weighed with {@link LRUCache#weigh}, fill the capacity of the cache. Loads still in flight
+     * at that point may overshoot it, so nothing is inserted until all of them are done: then the longest hottest
+     * prefix of the loaded entries that fits the capacity goes in from the coldest to the hottest,
+     * so colder entries never push out hotter ones and the recency order of the cache matches the snapshot.
+     * Only {@link LRUCache#weigh} is called on the executor, the cache itself is filled by the calling thread.
+     *
+     * @return number of restored entries
+     */
+    public static <K, V extends LRUCache.Sizeable> int restore(
+        LRUCache<K, V> cache,
+        Path file,
+        Codec<K> keyCodec,
+        Codec<V> valueCodec,
+        ByKeySizeableLoader<K, ? extends V> loader,
+        Executor executor,
+        int parallelism
+    ) throws IOException, InterruptedException {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("Parallelism must be greater than 0.");
+        long capacityBytes = cache.getMaxCapacityBytes();
+        AtomicLong loadedBytes = new AtomicLong();
+        Semaphore permits = new Semaphore(parallelism);
+        List<K> keys = new ArrayList<>();
+        Map<Integer, Loaded<V>> loaded = new ConcurrentHashMap<>();
+        try (Reader reader = new Reader(FileChannel.open(file, StandardOpenOption.READ))) {
+            boolean hasValues = reader.readHeader();
+            if (loader == null && (!hasValues || valueCodec == null))
+                throw new IllegalArgumentException("Snapshot can not be restored without a loader.");
+            byte[] key;
+            while (loadedBytes.get() < capacityBytes && (key = reader.next()) != null) {
+                byte[] value = hasValues ? reader.next() : null;
+                if (hasValues && value == null)
+                    break;
+                K k = decode(keyCodec, key);
+                V stored = value != null && valueCodec != null ? decode(valueCodec, value) : null;
+                int idx = keys.size();
+                keys.add(k);
+                permits.acquire();
+                try {
+                    executor.execute(() -> {
+                        try {
+                            V val = stored != null ? stored : loader.load(k);
+                            if (val != null) {
+                                long weight = cache.weigh(k, val);
+                                loaded.put(idx, new Loaded<>(val, weight));
+                                loadedBytes.addAndGet(weight);
+                            }
+                        } catch (RuntimeException ignored) {
+                            // Warm start is best effort, the entry will be loaded on demand
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+        } finally {
+            permits.acquireUninterruptibly(parallelism);
+        }
+        int end = 0;
+        for (long total = 0; end < keys.size(); end++) {
+            Loaded<V> next = loaded.get(end);
+            if (next == null)
+                continue;
+            if (total + next.weight > capacityBytes)
+                break;
+            total += next.weight;
+        }
+        for (int i = end - 1; i >= 0; i--) {
+            Loaded<V> next = loaded.get(i);
+            if (next == null)
+                continue;
+            try {
+                cache.getIfPresentOrLoad(keys.get(i), any -> next.value);
+            } catch (RuntimeException ignored) {
+                // Same as a failed load
+            }
+        }
+        int count = 0;
+        for (int i = end - 1; i >= 0; i--) {
+            if (loaded.containsKey(i) && cache.getIfPresent(keys.get(i)) != null)
+                count++;
+        }
+        return count;
+    }
+
+    private static <T> T decode(Codec<T> codec, byte[] bytes) {
+        try {
+            return codec.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static final class Loaded<V> {
+
+        final V value;
+        final long weight;
+
+        Loaded(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+
+    }
+
+    /**
+     * Appends a length-prefixed record, flushing the buffer whenever it fills up.
+     */
+    private static void put(FileChannel ch, ByteBuffer buf, OffHeapLRUCache.Scratch scratch) throws IOException {
+        ensureRemaining(ch, buf, 4);
+        buf.putInt(scratch.count);
+        for (int off = 0; off < scratch.count;) {
+            if (!buf.hasRemaining())
+                flush(ch, buf);
+            int n = Math.min(buf.remaining(), scratch.count - off);
+            buf.put(scratch.buf, off, n);
+            off += n;
+        }
+    }
+
+    private static void ensureRemaining(FileChannel ch, ByteBuffer buf, int n) throws IOException {
+        if (buf.remaining() < n)
+            flush(ch, buf);
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining())
+            ch.write(buf);
+        buf.clear();
+    }
+
+    /**
+     * Streams length-prefixed records through a fixed direct buffer, growing a heap copy only for the record itself.
+     */
+    private static final class Reader implements AutoCloseable {
+
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private boolean eof;
+
+        Reader(FileChannel ch) {
+            this.ch = ch;
+            buf.flip();
+        }
+
+        boolean readHeader() throws IOException {
+            if (!fill(9) || buf.getInt() != MAGIC)
+                throw new IOException("Not a cache snapshot.");
+            int version = buf.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version + ".");
+            return buf.get() != 0;
+        }
+
+        /**
+         * Returns the next record, null at the end or at a truncated record.
+         */
+        byte[] next() throws IOException {
+            if (!fill(4))
+                return null;
+            int length = buf.getInt();
+            if (length < 0)
+                return null;
+            byte[] res = new byte[length];
+            for (int off = 0; off < length;) {
+                if (!buf.hasRemaining() && !fill(1))
+                    return null;
+                int n = Math.min(buf.remaining(), length - off);
+                buf.get(res, off, n);
+                off += n;
+            }
+            return res;
+        }
+
+        private boolean fill(int n) throws IOException {
+            while (buf.remaining() < n && !eof) {
+                buf.compact();
+                eof = ch.read(buf) < 0;
+                buf.flip();
+            }
+            return buf.remaining() >= n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            ch.close();
+        }
+
+    }
+
+}
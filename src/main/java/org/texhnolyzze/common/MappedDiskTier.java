@@ -0,0 +1,422 @@
+package org.texhnolyzze.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Second cache tier on local disk. Entries evicted from memory are appended to memory-mapped
+ * segment files of a fixed size; an in-memory index maps keys to the latest record.
+ * <br>
+ * When the total size of the segments exceeds the byte budget the oldest segment is dropped
+ * with whatever it still holds. Sealed segments where less than half of the bytes belong to live
+ * records are compacted: live records are copied to the active segment and the file is deleted.
+ * Opening an existing directory replays its segments in order and rebuilds the index, a record
+ * is only trusted if its checksum matches.
+ * <br>
+ * Record layout: int payload length, int CRC32 of the payload, payload = int key length, key, value.
+ * Taking an entry back to memory appends a tombstone: the key with the highest bit of its length set and no value.
+ * Thread-safe.
+ *
+ * @author Texhnolyze
+ * @param <K> key
+ * @param <V> value
+ */
+public class MappedDiskTier<K, V extends LRUCache.Sizeable> implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int TOMBSTONE = 0x80000000;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".dat";
+
+    private final Path dir;
+    private final int segmentSize;
+    private final LRUCache.Codec<K> keyCodec;
+    private final LRUCache.Codec<V> valueCodec;
+
+    private final Map<K, Location> index = new HashMap<>();
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long capacityBytes;
+    private long sizeBytes;
+    private long nextId;
+    private boolean compacting;
+
+    private MappedDiskTier(Path dir, long capacityBytes, int segmentSize, LRUCache.Codec<K> keyCodec, LRUCache.Codec<V> valueCodec) {
+        this.dir = dir;
+        this.capacityBytes = capacityBytes;
+        this.segmentSize = segmentSize;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+    }
+
+    public static <K, V extends LRUCache.Sizeable> MappedDiskTier<K, V> open(
+        Path dir,
+        long capacityBytes,
+        LRUCache.Codec<K> keyCodec,
+        LRUCache.Codec<V> valueCodec
+    ) throws IOException {
+        return open(dir, capacityBytes, DEFAULT_SEGMENT_SIZE, keyCodec, valueCodec);
+    }
+
+    /**
+     * Opens the tier in dir, picking up the segments left there by the previous run.
+     */
+    public static <K, V extends LRUCache.Sizeable> MappedDiskTier<K, V> open(
+        Path dir,
+        long capacityBytes,
+        int segmentSize,
+        LRUCache.Codec<K> keyCodec,
+        LRUCache.Codec<V> valueCodec
+    ) throws IOException {
+        if (segmentSize <= HEADER_SIZE)
+            throw new IllegalArgumentException("Segment size must be greater than " + HEADER_SIZE + ".");
+        if (capacityBytes < 2L * segmentSize)
+            throw new IllegalArgumentException("Capacity must hold at least two segments.");
+        Files.createDirectories(dir);
+        MappedDiskTier<K, V> tier = new MappedDiskTier<>(dir, capacityBytes, segmentSize, keyCodec, valueCodec);
+        tier.recover();
+        return tier;
+    }
+
+    public synchronized long getSizeBytes() {return sizeBytes;}
+    public synchronized long getMaxCapacityBytes() {return capacityBytes;}
+    public synchronized int size() {return index.size();}
+
+    public synchronized void setMaxCapacity(long capacityBytes) {
+        if (capacityBytes < 2L * segmentSize)
+            throw new IllegalArgumentException("Capacity must hold at least two segments.");
+        this.capacityBytes = capacityBytes;
+        enforceCapacity();
+    }
+
+    public V get(K key) {
+        return read(key, false);
+    }
+
+    /**
+     * Returns the value and forgets it, used when the entry moves back to memory.
+     */
+    public V take(K key) {
+        return read(key, true);
+    }
+
+    private V read(K key, boolean remove) {
+        ByteBuffer buf;
+        Location loc;
+        synchronized (this) {
+            loc = remove ? index.remove(key) : index.get(key);
+            if (loc == null)
+                return null;
+            if (remove) {
+                loc.segment.live -= loc.length;
+                try {
+                    appendTombstone(key);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            // Mapping stays valid even if the segment is dropped meanwhile
+            buf = loc.segment.buffer.duplicate();
+        }
+        byte[] record = new byte[loc.length];
+        buf.position(loc.offset).get(record);
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, HEADER_SIZE, record.length - HEADER_SIZE));
+            in.skipBytes(in.readInt());
+            return valueCodec.read(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends the entry. Values that do not fit into a segment are silently dropped.
+     */
+    public void put(K key, V value) {
+        byte[] record;
+        try {
+            record = encode(key, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (record.length > segmentSize)
+            return;
+        synchronized (this) {
+            try {
+                append(key, record);
+                enforceCapacity();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Flushes the segments to the disk.
+     */
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments)
+            segment.buffer.force();
+    }
+
+    private void appendTombstone(K key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(0L);
+        out.writeInt(0);
+        keyCodec.write(key, out);
+        out.flush();
+        byte[] record = seal(bytes.toByteArray(), TOMBSTONE | (bytes.size() - HEADER_SIZE - 4));
+        Segment active = activeFor(record.length);
+        active.buffer.put(record);
+        sizeBytes += record.length;
+    }
+
+    private byte[] encode(K key, V value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(0L);
+        out.writeInt(0);
+        int keyStart = out.size();
+        keyCodec.write(key, out);
+        int keyLength = out.size() - keyStart;
+        valueCodec.write(value, out);
+        out.flush();
+        return seal(bytes.toByteArray(), keyLength);
+    }
+
+    /**
+     * Fills in the key length and the header of the record.
+     */
+    private static byte[] seal(byte[] record, int keyLength) {
+        int payloadLength = record.length - HEADER_SIZE;
+        putInt(record, HEADER_SIZE, keyLength);
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER_SIZE, payloadLength);
+        putInt(record, 0, payloadLength);
+        putInt(record, 4, (int) crc.getValue());
+        return record;
+    }
+
+    private void append(K key, byte[] record) throws IOException {
+        Segment active = activeFor(record.length);
+        int offset = active.buffer.position();
+        active.buffer.put(record);
+        active.live += record.length;
+        sizeBytes += record.length;
+        Location old = index.put(key, new Location(active, offset, record.length));
+        if (old != null)
+            old.segment.live -= old.length;
+    }
+
+    /**
+     * The last segment, rolling over until it has room for length more bytes.
+     */
+    private Segment activeFor(int length) throws IOException {
+        Segment active = segments.peekLast();
+        while (active == null || active.buffer.remaining() < length) {
+            roll();
+            // Compaction may have filled the new segment and rolled past it
+            active = segments.peekLast();
+        }
+        return active;
+    }
+
+    private void roll() throws IOException {
+        segments.addLast(map(nextId++));
+        if (!compacting)
+            compact();
+    }
+
+    private void compact() throws IOException {
+        compacting = true;
+        try {
+            List<Segment> sparse = new ArrayList<>();
+            for (Segment segment : segments) {
+                if (segment != segments.peekLast() && segment.live * 2 < segment.buffer.position())
+                    sparse.add(segment);
+            }
+            for (Segment segment : sparse) {
+                for (Map.Entry<K, byte[]> e : liveRecords(segment).entrySet()) {
+                    if (isTombstone(e.getValue()))
+                        appendTombstone(e.getKey());
+                    else
+                        append(e.getKey(), e.getValue());
+                }
+                drop(segment);
+            }
+        } finally {
+            compacting = false;
+        }
+    }
+
+    private void enforceCapacity() {
+        while (sizeBytes > capacityBytes && segments.size() > 1) {
+            Segment oldest = segments.peekFirst();
+            for (Iterator<Location> it = index.values().iterator(); it.hasNext(); ) {
+                if (it.next().segment == oldest)
+                    it.remove();
+            }
+            drop(oldest);
+        }
+    }
+
+    private void drop(Segment segment) {
+        segments.remove(segment);
+        sizeBytes -= segment.buffer.position();
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Map<K, byte[]> liveRecords(Segment segment) throws IOException {
+        Map<K, byte[]> res = new HashMap<>();
+        ByteBuffer buf = segment.buffer.duplicate();
+        buf.flip();
+        while (buf.remaining() >= HEADER_SIZE) {
+            int offset = buf.position();
+            int length = HEADER_SIZE + buf.getInt(offset);
+            byte[] record = new byte[length];
+            buf.get(record);
+            K key = decodeKey(record);
+            Location loc = index.get(key);
+            if (isTombstone(record)) {
+                // Older segments may still hold the value the tombstone hides
+                if (loc == null && segment != segments.peekFirst())
+                    res.put(key, record);
+            } else if (loc != null && loc.segment == segment && loc.offset == offset)
+                res.put(key, record);
+        }
+        return res;
+    }
+
+    private K decodeKey(byte[] record) throws IOException {
+        return keyCodec.read(new DataInputStream(new ByteArrayInputStream(record, HEADER_SIZE + 4, record.length - HEADER_SIZE - 4)));
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream)
+                files.add(file);
+        }
+        files.sort(null);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long id = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+            nextId = Math.max(nextId, id + 1);
+            Segment segment = map(id);
+            segments.addLast(segment);
+            replay(segment);
+            sizeBytes += segment.buffer.position();
+        }
+        enforceCapacity();
+    }
+
+    /**
+     * Indexes the valid records of the segment and leaves its position right after the last of them.
+     */
+    private void replay(Segment segment) throws IOException {
+        MappedByteBuffer buf = segment.buffer;
+        CRC32 crc = new CRC32();
+        while (buf.remaining() >= HEADER_SIZE) {
+            int offset = buf.position();
+            int payloadLength = buf.getInt(offset);
+            if (payloadLength <= 4 || payloadLength > buf.remaining() - HEADER_SIZE)
+                break;
+            byte[] record = new byte[HEADER_SIZE + payloadLength];
+            buf.get(record);
+            crc.reset();
+            crc.update(record, HEADER_SIZE, payloadLength);
+            if ((int) crc.getValue() != getInt(record, 4)) {
+                buf.position(offset);
+                break;
+            }
+            K key = decodeKey(record);
+            Location old;
+            if (isTombstone(record))
+                old = index.remove(key);
+            else {
+                segment.live += record.length;
+                old = index.put(key, new Location(segment, offset, record.length));
+            }
+            if (old != null)
+                old.segment.live -= old.length;
+        }
+    }
+
+    private Segment map(long id) throws IOException {
+        Path path = dir.resolve(String.format("%s%019d%s", PREFIX, id, SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        }
+    }
+
+    private static boolean isTombstone(byte[] record) {
+        return (getInt(record, HEADER_SIZE) & TOMBSTONE) != 0;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private static final class Segment {
+
+        final Path path;
+        final MappedByteBuffer buffer;
+        /* Bytes of the records the index still points to */
+        long live;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+    }
+
+    private static final class Location {
+
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+}
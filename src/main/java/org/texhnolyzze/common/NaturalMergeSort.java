@@ -0,0 +1,481 @@
+package org.texhnolyzze.common;
+
+import java.util.Comparator;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Run-adaptive merge sort behind {@link ParallelMergeSort#sortNatural}, along the lines of TimSort.
+ * <br>
+ * A chunk is scanned for natural runs, strictly descending runs are reversed in place, runs shorter than
+ * minRun are extended with a binary insertion sort. Runs are pushed on a stack and merged while the lengths
+ * on top break the invariants len[i - 2] > len[i - 1] + len[i] and len[i - 1] > len[i], so merges stay balanced
+ * and the stack stays logarithmic. Merges first skip, by galloping, the prefix of the left run and the suffix
+ * of the right run that are already in place, and switch to galloping whenever one run keeps winning,
+ * so presorted input costs a few comparisons per run instead of one per element.
+ * <br>
+ * An instance is the state of one sequential sort or merge over arr. tmp is the buffer for the shorter run of
+ * a merge, arr[i] is buffered at tmp[i - tmpOffset], so tasks working on disjoint ranges never share it.
+ */
+final class NaturalMergeSort<T> {
+
+    /* Shorter chunks are binary insertion sorted as a whole */
+    private static final int MIN_MERGE = 32;
+    private static final int MIN_GALLOP = 7;
+    /* Enough for any int length given the stack invariants */
+    private static final int MAX_RUNS = 49;
+
+    private final T[] a;
+    private final T[] tmp;
+    private final int tmpOffset;
+    private final Comparator<? super T> cmp;
+    private int minGallop = MIN_GALLOP;
+
+    private int[] runBase;
+    private int[] runLen;
+    private int stackSize;
+
+    NaturalMergeSort(T[] a, T[] tmp, int tmpOffset, Comparator<? super T> cmp) {
+        this.a = a;
+        this.tmp = tmp;
+        this.tmpOffset = tmpOffset;
+        this.cmp = cmp;
+    }
+
+    /**
+     * Sorts chunks of at most chunk elements sequentially in parallel, then merges neighbouring chunks
+     * up a balanced tree. A run crossing a chunk border is cut in two, the merge glues it back after one comparison.
+     */
+    @SuppressWarnings("serial")
+    static final class Task<T> extends RecursiveAction {
+
+        private final T[] a;
+        private final T[] tmp;
+        private final int tmpOffset;
+        private final int lo, hi;
+        private final int chunk;
+        private final Comparator<? super T> cmp;
+
+        Task(T[] a, T[] tmp, int tmpOffset, int lo, int hi, int chunk, Comparator<? super T> cmp) {
+            this.a = a;
+            this.tmp = tmp;
+            this.tmpOffset = tmpOffset;
+            this.lo = lo;
+            this.hi = hi;
+            this.chunk = chunk;
+            this.cmp = cmp;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= chunk) {
+                new NaturalMergeSort<>(a, tmp, tmpOffset, cmp).sort(lo, hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            Task<T> l = new Task<>(a, tmp, tmpOffset, lo, mid, chunk, cmp);
+            l.fork();
+            new Task<>(a, tmp, tmpOffset, mid, hi, chunk, cmp).compute();
+            l.join();
+            new NaturalMergeSort<>(a, tmp, tmpOffset, cmp).merge(lo, mid - lo, mid, hi - mid);
+        }
+
+    }
+
+    /**
+     * Sorts a[lo..hi)
+     */
+    void sort(int lo, int hi) {
+        int remaining = hi - lo;
+        if (remaining < 2)
+            return;
+        if (remaining < MIN_MERGE) {
+            binarySort(lo, hi, lo + countRunAndMakeAscending(lo, hi));
+            return;
+        }
+        runBase = new int[MAX_RUNS];
+        runLen = new int[MAX_RUNS];
+        int minRun = minRunLength(remaining);
+        do {
+            int len = countRunAndMakeAscending(lo, hi);
+            if (len < minRun) {
+                int force = Math.min(remaining, minRun);
+                binarySort(lo, lo + force, lo + len);
+                len = force;
+            }
+            runBase[stackSize] = lo;
+            runLen[stackSize] = len;
+            stackSize++;
+            mergeCollapse();
+            lo += len;
+            remaining -= len;
+        } while (remaining != 0);
+        while (stackSize > 1) {
+            int n = stackSize - 2;
+            if (n > 0 && runLen[n - 1] < runLen[n + 1])
+                n--;
+            mergeAt(n);
+        }
+    }
+
+    /**
+     * Minimal run length for n elements: n itself if it is short, otherwise a length in [MIN_MERGE / 2, MIN_MERGE]
+     * such that n / minRun is a power of two or slightly less, which keeps the final merges balanced
+     */
+    private static int minRunLength(int n) {
+        int r = 0;
+        while (n >= MIN_MERGE) {
+            r |= n & 1;
+            n >>= 1;
+        }
+        return n + r;
+    }
+
+    /**
+     * Length of the run starting at lo, reversed if it is strictly descending. Strictness keeps reversal stable.
+     */
+    private int countRunAndMakeAscending(int lo, int hi) {
+        int runHi = lo + 1;
+        if (runHi == hi)
+            return 1;
+        if (cmp.compare(a[runHi++], a[lo]) < 0) {
+            while (runHi < hi && cmp.compare(a[runHi], a[runHi - 1]) < 0)
+                runHi++;
+            for (int i = lo, j = runHi - 1; i < j; i++, j--) {
+                T t = a[i];
+                a[i] = a[j];
+                a[j] = t;
+            }
+        } else {
+            while (runHi < hi && cmp.compare(a[runHi], a[runHi - 1]) >= 0)
+                runHi++;
+        }
+        return runHi - lo;
+    }
+
+    /**
+     * Sorts a[lo..hi) given that a[lo..start) is already sorted, inserting after equal elements
+     */
+    private void binarySort(int lo, int hi, int start) {
+        if (start == lo)
+            start++;
+        for (; start < hi; start++) {
+            T pivot = a[start];
+            int left = lo;
+            int right = start;
+            while (left < right) {
+                int mid = (left + right) >>> 1;
+                if (cmp.compare(pivot, a[mid]) < 0)
+                    right = mid;
+                else
+                    left = mid + 1;
+            }
+            System.arraycopy(a, left, a, left + 1, start - left);
+            a[left] = pivot;
+        }
+    }
+
+    private void mergeCollapse() {
+        while (stackSize > 1) {
+            int n = stackSize - 2;
+            if (n > 0 && runLen[n - 1] <= runLen[n] + runLen[n + 1] || n > 1 && runLen[n - 2] <= runLen[n] + runLen[n - 1]) {
+                if (runLen[n - 1] < runLen[n + 1])
+                    n--;
+            } else if (runLen[n] > runLen[n + 1]) {
+                break;
+            }
+            mergeAt(n);
+        }
+    }
+
+    private void mergeAt(int i) {
+        int base1 = runBase[i];
+        int len1 = runLen[i];
+        int base2 = runBase[i + 1];
+        int len2 = runLen[i + 1];
+        runLen[i] = len1 + len2;
+        if (i == stackSize - 3) {
+            runBase[i + 1] = runBase[i + 2];
+            runLen[i + 1] = runLen[i + 2];
+        }
+        stackSize--;
+        merge(base1, len1, base2, len2);
+    }
+
+    /**
+     * Merges sorted neighbouring runs a[base1..base1 + len1) and a[base2..base2 + len2), base2 == base1 + len1
+     */
+    void merge(int base1, int len1, int base2, int len2) {
+        // Elements of run1 not greater than the first of run2 are already in place
+        int k = gallopRight(a[base2], a, base1, len1, 0);
+        base1 += k;
+        len1 -= k;
+        if (len1 == 0)
+            return;
+        // So are the elements of run2 not less than the last of run1
+        len2 = gallopLeft(a[base1 + len1 - 1], a, base2, len2, len2 - 1);
+        if (len2 == 0)
+            return;
+        if (len1 <= len2)
+            mergeLo(base1, len1, base2, len2);
+        else
+            mergeHi(base1, len1, base2, len2);
+    }
+
+    /**
+     * Leftmost position of key in the sorted arr[base..base + len): arr[base + k - 1] < key <= arr[base + k].
+     * Gallops from hint by 1, 3, 7, ... and finishes with a binary search, so a position close to hint is cheap.
+     */
+    private int gallopLeft(T key, T[] arr, int base, int len, int hint) {
+        int lastOfs = 0;
+        int ofs = 1;
+        if (cmp.compare(key, arr[base + hint]) > 0) {
+            int maxOfs = len - hint;
+            while (ofs < maxOfs && cmp.compare(key, arr[base + hint + ofs]) > 0) {
+                lastOfs = ofs;
+                ofs = (ofs << 1) + 1;
+                if (ofs <= 0)
+                    ofs = maxOfs;
+            }
+            if (ofs > maxOfs)
+                ofs = maxOfs;
+            lastOfs += hint;
+            ofs += hint;
+        } else {
+            int maxOfs = hint + 1;
+            while (ofs < maxOfs && cmp.compare(key, arr[base + hint - ofs]) <= 0) {
+                lastOfs = ofs;
+                ofs = (ofs << 1) + 1;
+                if (ofs <= 0)
+                    ofs = maxOfs;
+            }
+            if (ofs > maxOfs)
+                ofs = maxOfs;
+            int t = lastOfs;
+            lastOfs = hint - ofs;
+            ofs = hint - t;
+        }
+        // arr[base + lastOfs] < key <= arr[base + ofs]
+        lastOfs++;
+        while (lastOfs < ofs) {
+            int m = lastOfs + ((ofs - lastOfs) >>> 1);
+            if (cmp.compare(key, arr[base + m]) > 0)
+                lastOfs = m + 1;
+            else
+                ofs = m;
+        }
+        return ofs;
+    }
+
+    /**
+     * Rightmost position of key in the sorted arr[base..base + len): arr[base + k - 1] <= key < arr[base + k]
+     */
+    private int gallopRight(T key, T[] arr, int base, int len, int hint) {
+        int lastOfs = 0;
+        int ofs = 1;
+        if (cmp.compare(key, arr[base + hint]) < 0) {
+            int maxOfs = hint + 1;
+            while (ofs < maxOfs && cmp.compare(key, arr[base + hint - ofs]) < 0) {
+                lastOfs = ofs;
+                ofs = (ofs << 1) + 1;
+                if (ofs <= 0)
+                    ofs = maxOfs;
+            }
+            if (ofs > maxOfs)
+                ofs = maxOfs;
+            int t = lastOfs;
+            lastOfs = hint - ofs;
+            ofs = hint - t;
+        } else {
+            int maxOfs = len - hint;
+            while (ofs < maxOfs && cmp.compare(key, arr[base + hint + ofs]) >= 0) {
+                lastOfs = ofs;
+                ofs = (ofs << 1) + 1;
+                if (ofs <= 0)
+                    ofs = maxOfs;
+            }
+            if (ofs > maxOfs)
+                ofs = maxOfs;
+            lastOfs += hint;
+            ofs += hint;
+        }
+        // arr[base + lastOfs] <= key < arr[base + ofs]
+        lastOfs++;
+        while (lastOfs < ofs) {
+            int m = lastOfs + ((ofs - lastOfs) >>> 1);
+            if (cmp.compare(key, arr[base + m]) < 0)
+                ofs = m;
+            else
+                lastOfs = m + 1;
+        }
+        return ofs;
+    }
+
+    /**
+     * Merge front to back with run1 moved to tmp, len1 <= len2. The first element of run2 is known to go first,
+     * the last element of run1 is known to go last.
+     */
+    private void mergeLo(int base1, int len1, int base2, int len2) {
+        int cursor1 = base1 - tmpOffset;
+        System.arraycopy(a, base1, tmp, cursor1, len1);
+        int cursor2 = base2;
+        int dest = base1;
+        a[dest++] = a[cursor2++];
+        if (--len2 == 0) {
+            System.arraycopy(tmp, cursor1, a, dest, len1);
+            return;
+        }
+        if (len1 == 1) {
+            System.arraycopy(a, cursor2, a, dest, len2);
+            a[dest + len2] = tmp[cursor1];
+            return;
+        }
+        int minGallop = this.minGallop;
+        outer:
+        while (true) {
+            int count1 = 0;
+            int count2 = 0;
+            // One element at a time until a run wins minGallop times in a row
+            do {
+                if (cmp.compare(a[cursor2], tmp[cursor1]) < 0) {
+                    a[dest++] = a[cursor2++];
+                    count2++;
+                    count1 = 0;
+                    if (--len2 == 0)
+                        break outer;
+                } else {
+                    a[dest++] = tmp[cursor1++];
+                    count1++;
+                    count2 = 0;
+                    if (--len1 == 1)
+                        break outer;
+                }
+            } while ((count1 | count2) < minGallop);
+            // Then copy whole stretches while galloping pays off
+            do {
+                count1 = gallopRight(a[cursor2], tmp, cursor1, len1, 0);
+                if (count1 != 0) {
+                    System.arraycopy(tmp, cursor1, a, dest, count1);
+                    dest += count1;
+                    cursor1 += count1;
+                    len1 -= count1;
+                    if (len1 <= 1)
+                        break outer;
+                }
+                a[dest++] = a[cursor2++];
+                if (--len2 == 0)
+                    break outer;
+                count2 = gallopLeft(tmp[cursor1], a, cursor2, len2, 0);
+                if (count2 != 0) {
+                    System.arraycopy(a, cursor2, a, dest, count2);
+                    dest += count2;
+                    cursor2 += count2;
+                    len2 -= count2;
+                    if (len2 == 0)
+                        break outer;
+                }
+                a[dest++] = tmp[cursor1++];
+                if (--len1 == 1)
+                    break outer;
+                minGallop--;
+            } while (count1 >= MIN_GALLOP | count2 >= MIN_GALLOP);
+            if (minGallop < 0)
+                minGallop = 0;
+            minGallop += 2;
+        }
+        this.minGallop = Math.max(minGallop, 1);
+        if (len1 == 1) {
+            System.arraycopy(a, cursor2, a, dest, len2);
+            a[dest + len2] = tmp[cursor1];
+        } else if (len1 == 0) {
+            throw new IllegalArgumentException("Comparator violates its general contract.");
+        } else {
+            System.arraycopy(tmp, cursor1, a, dest, len1);
+        }
+    }
+
+    /**
+     * Merge back to front with run2 moved to tmp, len1 >= len2
+     */
+    private void mergeHi(int base1, int len1, int base2, int len2) {
+        int tmpBase = base2 - tmpOffset;
+        System.arraycopy(a, base2, tmp, tmpBase, len2);
+        int cursor1 = base1 + len1 - 1;
+        int cursor2 = tmpBase + len2 - 1;
+        int dest = base2 + len2 - 1;
+        a[dest--] = a[cursor1--];
+        if (--len1 == 0) {
+            System.arraycopy(tmp, tmpBase, a, dest - (len2 - 1), len2);
+            return;
+        }
+        if (len2 == 1) {
+            dest -= len1;
+            cursor1 -= len1;
+            System.arraycopy(a, cursor1 + 1, a, dest + 1, len1);
+            a[dest] = tmp[cursor2];
+            return;
+        }
+        int minGallop = this.minGallop;
+        outer:
+        while (true) {
+            int count1 = 0;
+            int count2 = 0;
+            do {
+                if (cmp.compare(tmp[cursor2], a[cursor1]) < 0) {
+                    a[dest--] = a[cursor1--];
+                    count1++;
+                    count2 = 0;
+                    if (--len1 == 0)
+                        break outer;
+                } else {
+                    a[dest--] = tmp[cursor2--];
+                    count2++;
+                    count1 = 0;
+                    if (--len2 == 1)
+                        break outer;
+                }
+            } while ((count1 | count2) < minGallop);
+            do {
+                count1 = len1 - gallopRight(tmp[cursor2], a, base1, len1, len1 - 1);
+                if (count1 != 0) {
+                    dest -= count1;
+                    cursor1 -= count1;
+                    len1 -= count1;
+                    System.arraycopy(a, cursor1 + 1, a, dest + 1, count1);
+                    if (len1 == 0)
+                        break outer;
+                }
+                a[dest--] = tmp[cursor2--];
+                if (--len2 == 1)
+                    break outer;
+                count2 = len2 - gallopLeft(a[cursor1], tmp, tmpBase, len2, len2 - 1);
+                if (count2 != 0) {
+                    dest -= count2;
+                    cursor2 -= count2;
+                    len2 -= count2;
+                    System.arraycopy(tmp, cursor2 + 1, a, dest + 1, count2);
+                    if (len2 <= 1)
+                        break outer;
+                }
+                a[dest--] = a[cursor1--];
+                if (--len1 == 0)
+                    break outer;
+                minGallop--;
+            } while (count1 >= MIN_GALLOP | count2 >= MIN_GALLOP);
+            if (minGallop < 0)
+                minGallop = 0;
+            minGallop += 2;
+        }
+        this.minGallop = Math.max(minGallop, 1);
+        if (len2 == 1) {
+            dest -= len1;
+            cursor1 -= len1;
+            System.arraycopy(a, cursor1 + 1, a, dest + 1, len1);
+            a[dest] = tmp[cursor2];
+        } else if (len2 == 0) {
+            throw new IllegalArgumentException("Comparator violates its general contract.");
+        } else {
+            System.arraycopy(tmp, tmpBase, a, dest - (len2 - 1), len2);
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package org.texhnolyzze.common;
+
+import org.texhnolyzze.common.ConcurrentLRUCache.Node;
+
+/**
+ * Intrusive doubly linked list of cache nodes, head is the least recently used one.
+ * Keeps the total weight of its nodes.
+ */
+final class NodeDeque<K, V> {
+
+    Node<K, V> head, tail;
+    long weight;
+
+    boolean isEmpty() {
+        return head == null;
+    }
+
+    void linkLast(Node<K, V> node) {
+        node.prev = tail;
+        node.next = null;
+        if (tail == null)
+            head = node;
+        else
+            tail.next = node;
+        tail = node;
+        weight += node.weight;
+    }
+
+    void unlink(Node<K, V> node) {
+        Node<K, V> prev = node.prev;
+        Node<K, V> next = node.next;
+        if (prev == null)
+            head = next;
+        else
+            prev.next = next;
+        if (next == null)
+            tail = prev;
+        else
+            next.prev = prev;
+        node.prev = node.next = null;
+        weight -= node.weight;
+    }
+
+    void moveToTail(Node<K, V> node) {
+        if (node != tail) {
+            unlink(node);
+            linkLast(node);
+        }
+    }
+
+}
@@ -0,0 +1,527 @@
+package org.texhnolyzze.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe {@link LRUCache} keeping values serialized outside of the java heap.
+ * Only keys and small index records stay on heap. Every stripe owns an arena of direct
+ * {@link ByteBuffer} slabs cut into fixed-size pages; a value occupies a chain of pages,
+ * so any freed page can be reused by any value and the arena never fragments.
+ * Size of an entry is the number of bytes in its pages, which is what
+ * {@link #getSizeBytes()} and the capacity account for.
+ * <br>
+ * Values are encoded on the calling thread before the stripe lock is taken and decoded after
+ * it is released, the lock only covers copying of the bytes. As in {@link ConcurrentLRUCache}, the pages
+ * are split evenly between the stripes and a stripe borrows the pages others do not use, so a single value
+ * can take the whole capacity. Slabs are allocated on demand and kept while the capacity stays the same.
+ * Lowering the capacity moves the pages of live entries out of the slabs beyond the new capacity and drops
+ * those slabs; as with any direct buffer, their memory is returned once they are garbage collected.
+ *
+ * @author Texhnolyze
+ * @param <K> key
+ * @param <V> value
+ */
+public class OffHeapLRUCache<K, V extends LRUCache.Sizeable> implements LRUCache<K, V> {
+
+    static final int DEFAULT_PAGE_SIZE = 4096;
+    private static final int SLAB_SIZE = 1 << 20;
+    private static final int MAX_RETAINED_SCRATCH = 1 << 20;
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final Codec<V> codec;
+    private final int pageSize;
+    private final Stripe<K>[] stripes;
+    private final int mask;
+    private final ConcurrentLRUCache.Budget budget = new ConcurrentLRUCache.Budget();
+    private volatile long capacityBytes;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    OffHeapLRUCache(long capacityBytes, int concurrencyLevel, int pageSize, Codec<V> codec) {
+        if (capacityBytes <= 0)
+            throw new IllegalArgumentException("Capacity must be greater than 0.");
+        if (concurrencyLevel <= 0)
+            throw new IllegalArgumentException("Concurrency level must be greater than 0.");
+        if (pageSize <= 0)
+            throw new IllegalArgumentException("Page size must be greater than 0.");
+        this.codec = codec;
+        this.pageSize = pageSize;
+        int n = Integer.highestOneBit(concurrencyLevel - 1) << 1;
+        this.stripes = new Stripe[Math.max(n, 1)];
+        this.mask = stripes.length - 1;
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe<>(pageSize, budget);
+        this.capacityBytes = capacityBytes;
+        distributeCapacity(capacityBytes);
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return budget.sizeBytes.get();
+    }
+
+    @Override public long getMaxCapacityBytes() {return capacityBytes;}
+
+    /**
+     * Bytes of direct memory held by the slabs
+     */
+    long getAllocatedBytes() {
+        long bytes = 0;
+        for (Stripe<K> stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                bytes += (long) stripe.slabs.size() * stripe.pagesPerSlab * pageSize;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public void setMaxCapacity(long capacityBytes) {
+        if (capacityBytes <= 0)
+            throw new IllegalArgumentException("Capacity must be greater than 0.");
+        this.capacityBytes = capacityBytes;
+        distributeCapacity(capacityBytes);
+    }
+
+    private void distributeCapacity(long capacityBytes) {
+        long pages = capacityBytes / pageSize;
+        budget.capacityBytes = pages * pageSize;
+        long share = pages / stripes.length;
+        long remainder = pages % stripes.length;
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe<K> stripe = stripes[i];
+            stripe.lock.lock();
+            try {
+                stripe.setMaxPages((int) Math.min(share + (i < remainder ? 1 : 0), Integer.MAX_VALUE));
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public V getIfPresent(K key) {
+        Stripe<K> stripe = stripeFor(key);
+        Scratch scratch = SCRATCH.get();
+        int length;
+        stripe.lock.lock();
+        try {
+            Slot slot = stripe.map.get(key);
+            if (slot == null)
+                return null;
+            slot.accessStamp = System.nanoTime();
+            length = stripe.read(slot, scratch);
+        } finally {
+            stripe.lock.unlock();
+        }
+        return decode(scratch, length);
+    }
+
+    @Override
+    public V getIfPresentOrLoad(K key, ByKeySizeableLoader<K, ? extends V> loader) {
+        V val = getIfPresent(key);
+        if (val != null)
+            return val;
+        val = loader.load(key);
+        if (val == null)
+            return null;
+        Scratch scratch = SCRATCH.get();
+        encode(val, scratch);
+        Stripe<K> stripe = stripeFor(key);
+        try {
+            int pages = stripe.pagesFor(scratch.count);
+            long size = (long) pages * pageSize;
+            if (pages > stripe.maxPages && size <= budget.capacityBytes)
+                reserve(size);
+            stripe.lock.lock();
+            try {
+                if (size > budget.capacityBytes)
+                    throw new RuntimeException("Insufficient cache space.");
+                stripe.put(key, scratch);
+            } finally {
+                stripe.lock.unlock();
+            }
+        } finally {
+            scratch.trim();
+        }
+        evictOverflow(stripe);
+        return val;
+    }
+
+    /**
+     * Same as in {@link ConcurrentLRUCache}: while the cache is over capacity evicts the stripes holding
+     * more than their share back to it, the written stripe last.
+     */
+    private void evictOverflow(Stripe<K> written) {
+        for (int i = 0; i < stripes.length && budget.isExceeded(); i++) {
+            Stripe<K> stripe = stripes[i];
+            if (stripe != written && stripe.usedPages > stripe.maxPages)
+                evict(stripe, 0);
+        }
+        if (budget.isExceeded())
+            evict(written, 0);
+    }
+
+    private void evict(Stripe<K> stripe, long reserve) {
+        stripe.lock.lock();
+        try {
+            stripe.evict(reserve);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Makes room for size bytes that do not fit the share of one stripe: stripes over their share are evicted
+     * back to it first, then every stripe in turn gives up its least recently used entry until the bytes fit.
+     */
+    private void reserve(long size) {
+        for (int i = 0; i < stripes.length && budget.isExceeded(size); i++) {
+            Stripe<K> stripe = stripes[i];
+            if (stripe.usedPages > stripe.maxPages)
+                evict(stripe, size);
+        }
+        boolean evicted = true;
+        while (evicted && budget.isExceeded(size)) {
+            evicted = false;
+            for (int i = 0; i < stripes.length && budget.isExceeded(size); i++) {
+                Stripe<K> stripe = stripes[i];
+                if (stripe.usedPages == 0)
+                    continue;
+                stripe.lock.lock();
+                try {
+                    evicted |= stripe.evictOne();
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Weakly consistent view, ordered by the time the entries were last read or written.
+     * Values are decoded lazily, entries evicted in the meantime are skipped.
+     */
+    @Override
+    public Iterable<Map.Entry<K, V>> fromLeastToMostRecentlyUsed() {
+        List<Ref<K>> snapshot = new ArrayList<>();
+        for (Stripe<K> stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                for (Map.Entry<K, Slot> e : stripe.map.entrySet())
+                    snapshot.add(new Ref<>(e.getKey(), e.getValue()));
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        snapshot.sort(Comparator.comparingLong(ref -> ref.accessStamp));
+        return () -> new Iterator<>() {
+
+            final Iterator<Ref<K>> it = snapshot.iterator();
+            Map.Entry<K, V> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && it.hasNext()) {
+                    Ref<K> ref = it.next();
+                    V val = peek(ref.key, ref.slot);
+                    if (val != null)
+                        next = new AbstractMap.SimpleImmutableEntry<>(ref.key, val);
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Map.Entry<K, V> res = next;
+                next = null;
+                return res;
+            }
+
+        };
+    }
+
+    private V peek(K key, Slot slot) {
+        Stripe<K> stripe = stripeFor(key);
+        Scratch scratch = SCRATCH.get();
+        int length;
+        stripe.lock.lock();
+        try {
+            if (slot.pages == null)
+                return null;
+            length = stripe.read(slot, scratch);
+        } finally {
+            stripe.lock.unlock();
+        }
+        return decode(scratch, length);
+    }
+
+    private void encode(V val, Scratch scratch) {
+        scratch.reset();
+        try {
+            codec.write(val, scratch.out);
+            scratch.out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private V decode(Scratch scratch, int length) {
+        try {
+            return codec.read(new DataInputStream(new ByteArrayInputStream(scratch.buf, 0, length)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            scratch.trim();
+        }
+    }
+
+    private Stripe<K> stripeFor(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return stripes[h & mask];
+    }
+
+    /**
+     * Index record of an entry: the pages holding its bytes, in order.
+     */
+    static final class Slot {
+
+        int[] pages;
+        int length;
+        long accessStamp;
+
+    }
+
+    private static final class Ref<K> {
+
+        final K key;
+        final Slot slot;
+        final long accessStamp;
+
+        Ref(K key, Slot slot) {
+            this.key = key;
+            this.slot = slot;
+            this.accessStamp = slot.accessStamp;
+        }
+
+    }
+
+    /**
+     * Per-thread heap buffer values are encoded into and copied out to.
+     */
+    static final class Scratch extends OutputStream {
+
+        byte[] buf = new byte[256];
+        int count;
+        final DataOutputStream out = new DataOutputStream(this);
+
+        void reset() {
+            count = 0;
+        }
+
+        byte[] ensureCapacity(int capacity) {
+            if (buf.length < capacity)
+                buf = Arrays.copyOf(buf, Math.max(capacity, buf.length << 1));
+            return buf;
+        }
+
+        void trim() {
+            if (buf.length > MAX_RETAINED_SCRATCH)
+                buf = new byte[256];
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(count + 1)[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, ensureCapacity(count + len), count, len);
+            count += len;
+        }
+
+    }
+
+    static final class Stripe<K> {
+
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<K, Slot> map = new LinkedHashMap<>(16, 0.75f, true);
+        final int pageSize;
+        final int pagesPerSlab;
+        final List<ByteBuffer> slabs = new ArrayList<>();
+        final ConcurrentLRUCache.Budget budget;
+
+        int[] freePages = new int[64];
+        int freeCount;
+        /* Pages handed out at least once, ids below it belong to allocated slabs */
+        int touchedPages;
+        /* Guarded by lock, read without it by evictOverflow */
+        volatile int usedPages;
+        /* Share of the capacity, more pages can be borrowed while the cache as a whole has room */
+        volatile int maxPages;
+
+        Stripe(int pageSize, ConcurrentLRUCache.Budget budget) {
+            this.pageSize = pageSize;
+            this.budget = budget;
+            this.pagesPerSlab = Math.max(1, SLAB_SIZE / pageSize);
+        }
+
+        int pagesFor(int length) {
+            return (int) (((long) length + pageSize - 1) / pageSize);
+        }
+
+        void setMaxPages(int maxPages) {
+            this.maxPages = maxPages;
+            evict(0);
+            releaseSlabs();
+        }
+
+        void put(K key, Scratch scratch) {
+            Slot old = map.remove(key);
+            if (old != null)
+                free(old);
+            int n = pagesFor(scratch.count);
+            // Room for the value within the share, unless the cache can lend it
+            Iterator<Slot> it = map.values().iterator();
+            while (usedPages + n > maxPages && budget.isExceeded((long) n * pageSize) && it.hasNext()) {
+                Slot victim = it.next();
+                it.remove();
+                free(victim);
+            }
+            Slot slot = new Slot();
+            slot.pages = new int[n];
+            slot.length = scratch.count;
+            slot.accessStamp = System.nanoTime();
+            for (int i = 0, off = 0; i < n; i++, off += pageSize) {
+                int page = allocate();
+                slot.pages[i] = page;
+                ByteBuffer dst = page(page);
+                dst.put(scratch.buf, off, Math.min(pageSize, scratch.count - off));
+            }
+            usedPages += n;
+            budget.sizeBytes.addAndGet((long) n * pageSize);
+            map.put(key, slot);
+        }
+
+        int read(Slot slot, Scratch scratch) {
+            byte[] dst = scratch.ensureCapacity(slot.length);
+            for (int i = 0, off = 0; i < slot.pages.length; i++, off += pageSize)
+                page(slot.pages[i]).get(dst, off, Math.min(pageSize, slot.length - off));
+            return slot.length;
+        }
+
+        /**
+         * Evicts down to the share of the stripe, but only while the cache as a whole can not take reserve bytes more
+         */
+        void evict(long reserve) {
+            while (usedPages > maxPages && budget.isExceeded(reserve)) {
+                if (!evictOne())
+                    break;
+            }
+        }
+
+        /**
+         * Evicts the least recently used entry, false if there is none
+         */
+        boolean evictOne() {
+            Iterator<Slot> it = map.values().iterator();
+            if (!it.hasNext())
+                return false;
+            Slot victim = it.next();
+            it.remove();
+            free(victim);
+            return true;
+        }
+
+        private void free(Slot slot) {
+            for (int page : slot.pages) {
+                if (freeCount == freePages.length)
+                    freePages = Arrays.copyOf(freePages, freeCount << 1);
+                freePages[freeCount++] = page;
+            }
+            usedPages -= slot.pages.length;
+            budget.sizeBytes.addAndGet(-(long) slot.pages.length * pageSize);
+            slot.pages = null;
+        }
+
+        /**
+         * Drops the slabs not needed for maxPages pages, or for the used ones if the stripe borrows more.
+         * Live pages in them are first copied into free pages below the limit; there are always enough of those,
+         * since no more pages than the limit are used.
+         */
+        private void releaseSlabs() {
+            int keepPages = Math.max(maxPages, usedPages);
+            int keepSlabs = (int) (((long) keepPages + pagesPerSlab - 1) / pagesPerSlab);
+            if (keepSlabs >= slabs.size())
+                return;
+            int limit = keepSlabs * pagesPerSlab;
+            int kept = 0;
+            for (int i = 0; i < freeCount; i++) {
+                if (freePages[i] < limit)
+                    freePages[kept++] = freePages[i];
+            }
+            freeCount = kept;
+            for (Slot slot : map.values()) {
+                for (int i = 0; i < slot.pages.length; i++) {
+                    int from = slot.pages[i];
+                    if (from < limit)
+                        continue;
+                    int to = freePages[--freeCount];
+                    ByteBuffer src = slabs.get(from / pagesPerSlab).duplicate();
+                    int off = (from % pagesPerSlab) * pageSize;
+                    src.limit(off + pageSize).position(off);
+                    page(to).put(src);
+                    slot.pages[i] = to;
+                }
+            }
+            slabs.subList(keepSlabs, slabs.size()).clear();
+            touchedPages = limit;
+        }
+
+        private int allocate() {
+            if (freeCount > 0)
+                return freePages[--freeCount];
+            int page = touchedPages++;
+            if (page / pagesPerSlab == slabs.size())
+                slabs.add(ByteBuffer.allocateDirect(pagesPerSlab * pageSize));
+            return page;
+        }
+
+        /**
+         * Slab positioned over the page. Slabs are only touched under the lock, so no duplicates are needed.
+         */
+        private ByteBuffer page(int page) {
+            ByteBuffer slab = slabs.get(page / pagesPerSlab);
+            int off = (page % pagesPerSlab) * pageSize;
+            slab.limit(off + pageSize).position(off);
+            return slab;
+        }
+
+    }
+
+}
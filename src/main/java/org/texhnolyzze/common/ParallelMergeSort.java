@@ -1,85 +1,337 @@
 package org.texhnolyzze.common;
 
 import java.lang.reflect.Array;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Stable parallel merge sort. Sorts arr[left..right] in place, every {@code sort} returns arr.
+ * <br>
+ * Uses a single auxiliary buffer of right - left + 1 elements. Before the sort the range is copied into it, so
+ * both arrays hold the same elements; every level sorts its halves into the other array and merges them back,
+ * so the two arrays swap roles on the way down and no level allocates anything.
+ * <br>
+ * int[], long[] and double[] are sorted without boxing. Objects ordered by a primitive key can be sorted with
+ * {@code sortByIntKey}, {@code sortByLongKey} or {@code sortByDoubleKey}: keys are extracted once into a primitive array,
+ * the keys are sorted together with the original positions and the objects are permuted once at the end,
+ * so no comparator runs at all.
+ * <br>
+ * {@code sortNatural} is the run-adaptive variant for nearly sorted input, see {@link NaturalMergeSort}.
+ * <br>
+ * Tasks run in the given {@link ForkJoinPool}, {@link ForkJoinPool#commonPool()} unless stated otherwise.
+ * Subarrays are forked only down to {@link #sequentialCutoff(int, int)} elements and sorted sequentially below that,
+ * ranges of at most threshold elements are insertion-sorted.
+ */
+public class ParallelMergeSort<T> extends RecursiveAction {
 
-public class ParallelMergeSort<T> extends RecursiveTask<T[]> {
-    
     private static final int DEFAULT_THRESHOLD = 50;
-    
+    /* Below this forking costs more than it saves, same granularity as Arrays.parallelSort */
+    private static final int MIN_SEQUENTIAL_CUTOFF = 1 << 13;
+    /* Leaf tasks per worker, several of them let work stealing even out unequal leaves */
+    private static final int TASKS_PER_THREAD = 4;
+
     public static <T> T[] sort(T[] arr, Comparator<? super T> cmp, Class<T> clazz) {
         return sort(arr, 0, arr.length - 1, DEFAULT_THRESHOLD, cmp, clazz);
     }
-    
+
     public static <T> T[] sort(T[] arr, int threshold, Comparator<? super T> cmp, Class<T> clazz) {
         return sort(arr, 0, arr.length - 1, threshold, cmp, clazz);
     }
-    
+
     public static <T> T[] sort(T[] arr, int left, int right, Comparator<? super T> cmp, Class<T> clazz) {
         return sort(arr, left, right, DEFAULT_THRESHOLD, cmp, clazz);
     }
-    
+
+    @SuppressWarnings("unchecked")
     public static <T> T[] sort(T[] arr, int left, int right, int threshold, Comparator<? super T> cmp, Class<T> clazz) {
-        Object obj = new ForkJoinPool().invoke(new ParallelMergeSort<>(arr, left, right, threshold, cmp, clazz));
-        return (T[]) obj;
+        return sort(arr, left, right, threshold, cmp, (T[]) Array.newInstance(clazz, Math.max(right - left + 1, 0)));
+    }
+
+    /**
+     * Same as the other overloads, but uses the given scratch array as the auxiliary buffer, so repeated sorts
+     * allocate nothing. scratch must hold at least right - left + 1 elements, its contents are overwritten.
+     */
+    public static <T> T[] sort(T[] arr, int left, int right, int threshold, Comparator<? super T> cmp, T[] scratch) {
+        return sort(ForkJoinPool.commonPool(), arr, left, right, threshold, cmp, scratch);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T[] sort(ForkJoinPool pool, T[] arr, Comparator<? super T> cmp, Class<T> clazz) {
+        return sort(pool, arr, 0, arr.length - 1, DEFAULT_THRESHOLD, cmp, (T[]) Array.newInstance(clazz, arr.length));
+    }
+
+    public static <T> T[] sort(ForkJoinPool pool, T[] arr, int left, int right, int threshold, Comparator<? super T> cmp, T[] scratch) {
+        int n = checkRange(arr.length, left, right);
+        if (threshold <= 0)
+            throw new IllegalArgumentException("Threshold must be greater than 0.");
+        if (scratch.length < n)
+            throw new IllegalArgumentException("Scratch array must hold at least " + n + " elements.");
+        if (n <= 1)
+            return arr;
+        System.arraycopy(arr, left, scratch, 0, n);
+        int cutoff = sequentialCutoff(n, pool.getParallelism());
+        invoke(pool, new ParallelMergeSort<>(scratch, 0, arr, left, 0, n, threshold, cutoff, cmp), n, cutoff);
+        return arr;
+    }
+
+    public static <T> T[] sortNatural(T[] arr, Comparator<? super T> cmp, Class<T> clazz) {
+        return sortNatural(ForkJoinPool.commonPool(), arr, cmp, clazz);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T[] sortNatural(ForkJoinPool pool, T[] arr, Comparator<? super T> cmp, Class<T> clazz) {
+        return sortNatural(pool, arr, 0, arr.length - 1, cmp, (T[]) Array.newInstance(clazz, arr.length));
+    }
+
+    public static <T> T[] sortNatural(T[] arr, int left, int right, Comparator<? super T> cmp, T[] scratch) {
+        return sortNatural(ForkJoinPool.commonPool(), arr, left, right, cmp, scratch);
+    }
+
+    /**
+     * Run-adaptive stable sort for input that is already partially ordered, e.g. events appended in time order.
+     * Natural ascending and strictly descending runs are detected and merged with galloping, so sorted or
+     * reverse sorted stretches cost close to one comparison per element instead of a full split down
+     * to the threshold. Chunks of {@link #sequentialCutoff(int, int)} elements are scanned and sorted in parallel,
+     * then merged pairwise.
+     * <br>
+     * scratch must hold at least right - left + 1 elements, its contents are overwritten.
+     */
+    public static <T> T[] sortNatural(ForkJoinPool pool, T[] arr, int left, int right, Comparator<? super T> cmp, T[] scratch) {
+        int n = checkRange(arr.length, left, right);
+        if (scratch.length < n)
+            throw new IllegalArgumentException("Scratch array must hold at least " + n + " elements.");
+        if (n <= 1)
+            return arr;
+        int cutoff = sequentialCutoff(n, pool.getParallelism());
+        invoke(pool, new NaturalMergeSort.Task<>(arr, scratch, left, left, right + 1, cutoff, cmp), n, cutoff);
+        return arr;
+    }
+
+    public static int[] sort(int[] arr) {
+        return sort(arr, 0, arr.length - 1);
+    }
+
+    public static int[] sort(int[] arr, int left, int right) {
+        return sort(ForkJoinPool.commonPool(), arr, left, right);
+    }
+
+    public static int[] sort(ForkJoinPool pool, int[] arr, int left, int right) {
+        int n = checkRange(arr.length, left, right);
+        if (n <= 1)
+            return arr;
+        int cutoff = sequentialCutoff(n, pool.getParallelism());
+        if (n <= cutoff)
+            Arrays.sort(arr, left, right + 1);
+        else
+            pool.invoke(new PrimitiveMergeSort.IntTask(Arrays.copyOfRange(arr, left, right + 1), 0, arr, left, 0, n, cutoff));
+        return arr;
+    }
+
+    public static long[] sort(long[] arr) {
+        return sort(arr, 0, arr.length - 1);
+    }
+
+    public static long[] sort(long[] arr, int left, int right) {
+        return sort(ForkJoinPool.commonPool(), arr, left, right);
+    }
+
+    public static long[] sort(ForkJoinPool pool, long[] arr, int left, int right) {
+        int n = checkRange(arr.length, left, right);
+        if (n <= 1)
+            return arr;
+        int cutoff = sequentialCutoff(n, pool.getParallelism());
+        if (n <= cutoff)
+            Arrays.sort(arr, left, right + 1);
+        else
+            pool.invoke(new PrimitiveMergeSort.LongTask(Arrays.copyOfRange(arr, left, right + 1), 0, arr, left, null, null, 0, n, cutoff));
+        return arr;
+    }
+
+    public static double[] sort(double[] arr) {
+        return sort(arr, 0, arr.length - 1);
     }
-    
-    private final T[] arr;
-    private final int left, right;
+
+    public static double[] sort(double[] arr, int left, int right) {
+        return sort(ForkJoinPool.commonPool(), arr, left, right);
+    }
+
+    /**
+     * Orders as {@link Arrays#sort(double[])}: -0.0 before 0.0, NaNs last. Values are sorted as longs
+     * with the same order, NaNs come back as the canonical {@link Double#NaN}.
+     */
+    public static double[] sort(ForkJoinPool pool, double[] arr, int left, int right) {
+        int n = checkRange(arr.length, left, right);
+        if (n <= 1)
+            return arr;
+        int cutoff = sequentialCutoff(n, pool.getParallelism());
+        if (n <= cutoff) {
+            Arrays.sort(arr, left, right + 1);
+            return arr;
+        }
+        long[] bits = new long[n];
+        pool.invoke(new PrimitiveMergeSort.RangeTask((from, to) -> {
+            for (int i = from; i < to; i++)
+                bits[i] = PrimitiveMergeSort.sortableBits(arr[left + i]);
+        }, 0, n, cutoff));
+        pool.invoke(new PrimitiveMergeSort.LongTask(bits.clone(), 0, bits, 0, null, null, 0, n, cutoff));
+        pool.invoke(new PrimitiveMergeSort.RangeTask((from, to) -> {
+            for (int i = from; i < to; i++)
+                arr[left + i] = PrimitiveMergeSort.fromSortableBits(bits[i]);
+        }, 0, n, cutoff));
+        return arr;
+    }
+
+    public static <T> T[] sortByIntKey(T[] arr, ToIntFunction<? super T> key) {
+        return sortByIntKey(arr, 0, arr.length - 1, key);
+    }
+
+    public static <T> T[] sortByIntKey(T[] arr, int left, int right, ToIntFunction<? super T> key) {
+        return sortByIntKey(ForkJoinPool.commonPool(), arr, left, right, key);
+    }
+
+    public static <T> T[] sortByIntKey(ForkJoinPool pool, T[] arr, int left, int right, ToIntFunction<? super T> key) {
+        return sortByLongKey(pool, arr, left, right, t -> key.applyAsInt(t));
+    }
+
+    public static <T> T[] sortByDoubleKey(T[] arr, ToDoubleFunction<? super T> key) {
+        return sortByDoubleKey(arr, 0, arr.length - 1, key);
+    }
+
+    public static <T> T[] sortByDoubleKey(T[] arr, int left, int right, ToDoubleFunction<? super T> key) {
+        return sortByDoubleKey(ForkJoinPool.commonPool(), arr, left, right, key);
+    }
+
+    /**
+     * Keys are ordered as by {@link Double#compare}
+     */
+    public static <T> T[] sortByDoubleKey(ForkJoinPool pool, T[] arr, int left, int right, ToDoubleFunction<? super T> key) {
+        return sortByLongKey(pool, arr, left, right, t -> PrimitiveMergeSort.sortableBits(key.applyAsDouble(t)));
+    }
+
+    public static <T> T[] sortByLongKey(T[] arr, ToLongFunction<? super T> key) {
+        return sortByLongKey(arr, 0, arr.length - 1, key);
+    }
+
+    public static <T> T[] sortByLongKey(T[] arr, int left, int right, ToLongFunction<? super T> key) {
+        return sortByLongKey(ForkJoinPool.commonPool(), arr, left, right, key);
+    }
+
+    /**
+     * Stable sort of arr[left..right] in place by the key. The key is extracted exactly once per element.
+     */
+    public static <T> T[] sortByLongKey(ForkJoinPool pool, T[] arr, int left, int right, ToLongFunction<? super T> key) {
+        int n = checkRange(arr.length, left, right);
+        if (n <= 1)
+            return arr;
+        int cutoff = sequentialCutoff(n, pool.getParallelism());
+        long[] keys = new long[n];
+        int[] idx = new int[n];
+        invoke(pool, new PrimitiveMergeSort.RangeTask((from, to) -> {
+            for (int i = from; i < to; i++) {
+                keys[i] = key.applyAsLong(arr[left + i]);
+                idx[i] = i;
+            }
+        }, 0, n, cutoff), n, cutoff);
+        invoke(pool, new PrimitiveMergeSort.LongTask(keys.clone(), 0, keys, 0, idx.clone(), idx, 0, n, cutoff), n, cutoff);
+        T[] copy = Arrays.copyOfRange(arr, left, right + 1);
+        invoke(pool, new PrimitiveMergeSort.RangeTask((from, to) -> {
+            for (int i = from; i < to; i++)
+                arr[left + i] = copy[idx[i]];
+        }, 0, n, cutoff), n, cutoff);
+        return arr;
+    }
+
+    /**
+     * Size of the subarrays that are no longer split into parallel tasks: about {@value #TASKS_PER_THREAD} leaves
+     * per worker, but not smaller than {@value #MIN_SEQUENTIAL_CUTOFF} elements
+     */
+    static int sequentialCutoff(int n, int parallelism) {
+        return Math.max(MIN_SEQUENTIAL_CUTOFF, n / (Math.max(parallelism, 1) * TASKS_PER_THREAD));
+    }
+
+    static int checkRange(int length, int left, int right) {
+        if (left < 0 || right >= length)
+            throw new ArrayIndexOutOfBoundsException("Range [" + left + ", " + right + "] is out of array of length " + length);
+        return right - left + 1;
+    }
+
+    /**
+     * Input that fits a single leaf is sorted in the calling thread, the pool is not involved at all
+     */
+    static void invoke(ForkJoinPool pool, ForkJoinTask<?> task, int n, int cutoff) {
+        if (n <= cutoff)
+            task.invoke();
+        else
+            pool.invoke(task);
+    }
+
+    /* On entry src and dst hold the same elements in [lo, hi), on exit dst holds them sorted */
+    private final T[] src;
+    private final int srcBase;
+    private final T[] dst;
+    private final int dstBase;
+    private final int lo, hi;
     private final int threshold;
+    private final int cutoff;
     private final Comparator<? super T> cmp;
-    private final Class<T> clazz;
 
-    private ParallelMergeSort(T[] arr, int left, int right, int threshold, Comparator<? super T> cmp, Class<T> clazz) {
-        this.arr = arr;
-        this.left = left;
-        this.right = right;
+    private ParallelMergeSort(T[] src, int srcBase, T[] dst, int dstBase, int lo, int hi, int threshold, int cutoff, Comparator<? super T> cmp) {
+        this.src = src;
+        this.srcBase = srcBase;
+        this.dst = dst;
+        this.dstBase = dstBase;
+        this.lo = lo;
+        this.hi = hi;
         this.threshold = threshold;
+        this.cutoff = cutoff;
         this.cmp = cmp;
-        this.clazz = clazz;
     }
 
     @Override
-    protected T[] compute() {
-        int n = right - left + 1;
-        if (n <= threshold) {
-            insertionSort(arr, left, right, cmp);
-            return n == arr.length ? arr : null;
+    protected void compute() {
+        if (hi - lo <= threshold) {
+            insertionSort(dst, dstBase + lo, dstBase + hi - 1, cmp);
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        ParallelMergeSort<T> l = new ParallelMergeSort<>(dst, dstBase, src, srcBase, lo, mid, threshold, cutoff, cmp);
+        ParallelMergeSort<T> r = new ParallelMergeSort<>(dst, dstBase, src, srcBase, mid, hi, threshold, cutoff, cmp);
+        if (hi - lo <= cutoff) {
+            l.compute();
+            r.compute();
         } else {
-            int mid = left + (right - left) / 2;
-            ParallelMergeSort<T> l = new ParallelMergeSort<>(arr, left, mid, threshold, cmp, clazz);
-            ParallelMergeSort<T> r = new ParallelMergeSort<>(arr, mid + 1, right, threshold, cmp, clazz);
             l.fork();
-            T[] rightArr = r.compute();
-            T[] leftArr = l.join();
-            return merge(arr, leftArr, rightArr, left, mid, right, cmp, clazz);
+            r.compute();
+            l.join();
         }
+        merge(src, srcBase + lo, srcBase + mid, srcBase + hi, dst, dstBase + lo, cmp);
     }
 
-    private static <T> T[] merge(T[] src, T[] leftArr, T[] rightArr, int leftIdx, int midIdx, int rightIdx, Comparator<? super T> cmp, Class<T> clazz) {
-        T[] res = (T[]) Array.newInstance(clazz, rightIdx - leftIdx + 1);
-        int k = 0;
-        int i = leftArr == null ? leftIdx : 0;
-        int j = rightArr == null ? midIdx + 1 : 0;
-        int iBound = leftArr == null ? midIdx + 1 : leftArr.length;
-        int jBound = rightArr == null ? rightIdx + 1 : rightArr.length;
-        T[] left = leftArr == null ? src : leftArr;
-        T[] right = rightArr == null ? src : rightArr;
-        while (i < iBound && j < jBound) {
-            if (cmp.compare(left[i], right[j]) < 0) res[k++] = left[i++];
-            else if (cmp.compare(left[i], right[j]) > 0) res[k++] = right[j++];
-            else {
-                res[k++] = left[i++];
-                res[k++] = right[j++];
-            }
+    /**
+     * Merges src[from..mid) and src[mid..to) into dst starting at k, one comparison per element.
+     * Ties take the left element, which keeps the sort stable.
+     */
+    private static <T> void merge(T[] src, int from, int mid, int to, T[] dst, int k, Comparator<? super T> cmp) {
+        if (cmp.compare(src[mid - 1], src[mid]) <= 0) {
+            // Halves are already in order, e.g. presorted input
+            System.arraycopy(src, from, dst, k, to - from);
+            return;
         }
-        if (i < iBound) do res[k++] = left[i++]; while (i < iBound);
-        else if (j < jBound) do res[k++] = right[j++]; while (j < jBound);
-        return res;
+        int i = from;
+        int j = mid;
+        while (i < mid && j < to)
+            dst[k++] = cmp.compare(src[j], src[i]) < 0 ? src[j++] : src[i++];
+        if (i < mid)
+            System.arraycopy(src, i, dst, k, mid - i);
+        else
+            System.arraycopy(src, j, dst, k, to - j);
     }
-    
 
     private static <T> void insertionSort(T[] arr, int left, int right, Comparator<? super T> cmp) {
         for (int i = left; i <= right; i++) {
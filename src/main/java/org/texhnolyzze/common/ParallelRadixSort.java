@@ -0,0 +1,226 @@
+package org.texhnolyzze.common;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.ToLongFunction;
+
+/**
+ * Parallel LSD radix sort for int and long keys, the non-comparison counterpart of {@link ParallelMergeSort}.
+ * Sorts arr[left..right] in place, every method returns arr. Runs in the same pools and splits work with
+ * the same {@link ParallelMergeSort#sequentialCutoff(int, int)}.
+ * <br>
+ * Keys are sorted one byte per pass, least significant first, 4 passes for int and 8 for long. The range is cut into
+ * blocks of cutoff elements and every pass is
+ * <ol>
+ *     <li>a parallel count of the byte values in each block into its own histogram;</li>
+ *     <li>a prefix sum over (byte value, block) turning the histograms into each block's first output position per value;</li>
+ *     <li>a parallel scatter of each block into the other buffer at those positions.</li>
+ * </ol>
+ * Blocks and the elements within a block keep their order, so every pass and the whole sort are stable.
+ * A pass in which all keys share the byte value is skipped, keys of a narrow range cost fewer passes.
+ * Signed order comes from flipping the sign bit of the most significant byte.
+ * <br>
+ * Needs a buffer as large as the range, plus an int per element for {@code sortByLongKey}.
+ * Ranges that fit one block are sorted with {@link Arrays#sort(int[], int, int)} instead.
+ */
+public final class ParallelRadixSort {
+
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int MASK = RADIX - 1;
+    /* Flips the sign bit of the most significant byte */
+    private static final int SIGN_FLIP = RADIX >>> 1;
+
+    private ParallelRadixSort() {}
+
+    public static int[] sort(int[] arr) {
+        return sort(arr, 0, arr.length - 1);
+    }
+
+    public static int[] sort(int[] arr, int left, int right) {
+        return sort(ForkJoinPool.commonPool(), arr, left, right);
+    }
+
+    public static int[] sort(ForkJoinPool pool, int[] arr, int left, int right) {
+        int n = ParallelMergeSort.checkRange(arr.length, left, right);
+        if (n <= 1)
+            return arr;
+        int cutoff = ParallelMergeSort.sequentialCutoff(n, pool.getParallelism());
+        if (n <= cutoff) {
+            Arrays.sort(arr, left, right + 1);
+            return arr;
+        }
+        int blocks = (n - 1) / cutoff + 1;
+        int[][] counts = new int[blocks][RADIX];
+        int[] src = arr;
+        int srcBase = left;
+        int[] dst = new int[n];
+        int dstBase = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += RADIX_BITS) {
+            int[] from = src;
+            int fromBase = srcBase;
+            int[] to = dst;
+            int toBase = dstBase;
+            int s = shift;
+            int flip = shift == Integer.SIZE - RADIX_BITS ? SIGN_FLIP : 0;
+            forEachBlock(pool, blocks, b -> {
+                int[] count = counts[b];
+                Arrays.fill(count, 0);
+                for (int i = fromBase + b * cutoff, end = fromBase + Math.min(n, (b + 1) * cutoff); i < end; i++)
+                    count[(from[i] >>> s & MASK) ^ flip]++;
+            });
+            if (!toOffsets(counts, n))
+                continue;
+            forEachBlock(pool, blocks, b -> {
+                int[] offset = counts[b];
+                for (int i = fromBase + b * cutoff, end = fromBase + Math.min(n, (b + 1) * cutoff); i < end; i++)
+                    to[toBase + offset[(from[i] >>> s & MASK) ^ flip]++] = from[i];
+            });
+            src = to;
+            srcBase = toBase;
+            dst = from;
+            dstBase = fromBase;
+        }
+        if (src != arr)
+            System.arraycopy(src, 0, arr, left, n);
+        return arr;
+    }
+
+    public static long[] sort(long[] arr) {
+        return sort(arr, 0, arr.length - 1);
+    }
+
+    public static long[] sort(long[] arr, int left, int right) {
+        return sort(ForkJoinPool.commonPool(), arr, left, right);
+    }
+
+    public static long[] sort(ForkJoinPool pool, long[] arr, int left, int right) {
+        int n = ParallelMergeSort.checkRange(arr.length, left, right);
+        if (n <= 1)
+            return arr;
+        int cutoff = ParallelMergeSort.sequentialCutoff(n, pool.getParallelism());
+        if (n <= cutoff) {
+            Arrays.sort(arr, left, right + 1);
+            return arr;
+        }
+        long[] keys = Arrays.copyOfRange(arr, left, right + 1);
+        sortKeys(pool, keys, null, cutoff);
+        System.arraycopy(keys, 0, arr, left, n);
+        return arr;
+    }
+
+    public static <T> T[] sortByLongKey(T[] arr, ToLongFunction<? super T> key) {
+        return sortByLongKey(arr, 0, arr.length - 1, key);
+    }
+
+    public static <T> T[] sortByLongKey(T[] arr, int left, int right, ToLongFunction<? super T> key) {
+        return sortByLongKey(ForkJoinPool.commonPool(), arr, left, right, key);
+    }
+
+    /**
+     * Stable sort of arr[left..right] in place by the key. The key is extracted exactly once per element,
+     * the keys are radix sorted together with the original positions and the objects are permuted once at the end.
+     */
+    public static <T> T[] sortByLongKey(ForkJoinPool pool, T[] arr, int left, int right, ToLongFunction<? super T> key) {
+        int n = ParallelMergeSort.checkRange(arr.length, left, right);
+        if (n <= 1)
+            return arr;
+        int cutoff = ParallelMergeSort.sequentialCutoff(n, pool.getParallelism());
+        long[] keys = new long[n];
+        int[] idx = new int[n];
+        ParallelMergeSort.invoke(pool, new PrimitiveMergeSort.RangeTask((from, to) -> {
+            for (int i = from; i < to; i++) {
+                keys[i] = key.applyAsLong(arr[left + i]);
+                idx[i] = i;
+            }
+        }, 0, n, cutoff), n, cutoff);
+        sortKeys(pool, keys, idx, cutoff);
+        T[] copy = Arrays.copyOfRange(arr, left, right + 1);
+        ParallelMergeSort.invoke(pool, new PrimitiveMergeSort.RangeTask((from, to) -> {
+            for (int i = from; i < to; i++)
+                arr[left + i] = copy[idx[i]];
+        }, 0, n, cutoff), n, cutoff);
+        return arr;
+    }
+
+    /**
+     * Sorts keys, and idx along with them unless it is null. Both end up in the given arrays.
+     */
+    private static void sortKeys(ForkJoinPool pool, long[] keys, int[] idx, int cutoff) {
+        int n = keys.length;
+        int blocks = (n - 1) / cutoff + 1;
+        int[][] counts = new int[blocks][RADIX];
+        long[] src = keys;
+        long[] dst = new long[n];
+        int[] srcIdx = idx;
+        int[] dstIdx = idx == null ? null : new int[n];
+        for (int shift = 0; shift < Long.SIZE; shift += RADIX_BITS) {
+            long[] from = src;
+            long[] to = dst;
+            int[] fromIdx = srcIdx;
+            int[] toIdx = dstIdx;
+            int s = shift;
+            int flip = shift == Long.SIZE - RADIX_BITS ? SIGN_FLIP : 0;
+            forEachBlock(pool, blocks, b -> {
+                int[] count = counts[b];
+                Arrays.fill(count, 0);
+                for (int i = b * cutoff, end = Math.min(n, i + cutoff); i < end; i++)
+                    count[((int) (from[i] >>> s) & MASK) ^ flip]++;
+            });
+            if (!toOffsets(counts, n))
+                continue;
+            forEachBlock(pool, blocks, b -> {
+                int[] offset = counts[b];
+                for (int i = b * cutoff, end = Math.min(n, i + cutoff); i < end; i++) {
+                    int k = offset[((int) (from[i] >>> s) & MASK) ^ flip]++;
+                    to[k] = from[i];
+                    if (toIdx != null)
+                        toIdx[k] = fromIdx[i];
+                }
+            });
+            src = to;
+            dst = from;
+            srcIdx = toIdx;
+            dstIdx = fromIdx;
+        }
+        if (src != keys) {
+            System.arraycopy(src, 0, keys, 0, n);
+            if (idx != null)
+                System.arraycopy(srcIdx, 0, idx, 0, n);
+        }
+    }
+
+    /**
+     * Replaces the per block histograms with the output position of each block's first element per byte value.
+     * Returns false, leaving the histograms as they are, if all n keys share the byte value and the pass can be skipped.
+     */
+    private static boolean toOffsets(int[][] counts, int n) {
+        int pos = 0;
+        for (int d = 0; d < RADIX; d++) {
+            int total = 0;
+            for (int[] count : counts)
+                total += count[d];
+            if (total == n)
+                return false;
+            for (int[] count : counts) {
+                int c = count[d];
+                count[d] = pos;
+                pos += c;
+            }
+        }
+        return true;
+    }
+
+    @FunctionalInterface
+    private interface BlockBody {
+        void apply(int block);
+    }
+
+    private static void forEachBlock(ForkJoinPool pool, int blocks, BlockBody body) {
+        ParallelMergeSort.invoke(pool, new PrimitiveMergeSort.RangeTask((from, to) -> {
+            for (int b = from; b < to; b++)
+                body.apply(b);
+        }, 0, blocks, 1), blocks, 1);
+    }
+
+}
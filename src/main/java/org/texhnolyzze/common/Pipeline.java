@@ -0,0 +1,519 @@
+package org.texhnolyzze.common;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Конвейер source → стадии map/filter/flatMap → sink поверх {@link CancellableBlockingQueue}.<br>
+ * Между соседними стадиями своя очередь: writer-ов в ней столько, какова параллельность предыдущей стадии,
+ * reader-ов - сколько у следующей. Каждый поток стадии читает по идиоме reader-а и пишет по идиоме writer-а,
+ * так что {@link CancellableBlockingQueue#writerDone()} и {@link CancellableBlockingQueue#readerDone()} вызываются сами.
+ * Исключение в любой стадии прерывает все очереди через {@link CancellableBlockingQueue#abort(Throwable)}.<br>
+ * Потоки берутся из переданного {@link Executor}: это может быть ограниченный пул платформенных потоков
+ * или, на JDK с их поддержкой, executor виртуальных потоков. Все потоки конвейера работают одновременно,
+ * поэтому пул должен вмещать их все сразу.
+ * <pre>
+ *     Pipeline.Execution run = Pipeline.from(lines)
+ *         .map(Parser::parse, 4)
+ *         .filter(Record::isValid, 2)
+ *         .to(db::save, executor);
+ *     run.await();
+ * </pre>
+ * Параллельные стадии не сохраняют порядок элементов, кроме {@link #mapOrdered(Function, int, int)}.
+ * Экземпляры неизменяемы, каждая стадия возвращает новый конвейер.
+ *
+ * @param <T> Тип элементов на выходе последней стадии
+ */
+public final class Pipeline<T> {
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+    private static final int DEFAULT_REORDER_WINDOW_PER_THREAD = 16;
+
+    private final Iterable<?> source;
+    private final List<Stage> stages;
+    private final int bufferSize;
+    private final CancellableBlockingQueue.Backend backend;
+
+    private Pipeline(Iterable<?> source, List<Stage> stages, int bufferSize, CancellableBlockingQueue.Backend backend) {
+        this.source = source;
+        this.stages = stages;
+        this.bufferSize = bufferSize;
+        this.backend = backend;
+    }
+
+    public static <T> Pipeline<T> from(Iterable<? extends T> source) {
+        return new Pipeline<>(Preconditions.checkNotNull(source), Collections.emptyList(), DEFAULT_BUFFER_SIZE, CancellableBlockingQueue.Backend.RING_BUFFER);
+    }
+
+    /**
+     * Размер очередей между стадиями, по умолчанию 1024
+     */
+    public Pipeline<T> bufferSize(int bufferSize) {
+        Preconditions.checkArgument(bufferSize > 0);
+        return new Pipeline<>(source, stages, bufferSize, backend);
+    }
+
+    /**
+     * Реализация очередей между стадиями, по умолчанию {@link CancellableBlockingQueue.Backend#RING_BUFFER}
+     */
+    public Pipeline<T> backend(CancellableBlockingQueue.Backend backend) {
+        return new Pipeline<>(source, stages, bufferSize, Preconditions.checkNotNull(backend));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <R> Pipeline<R> map(Function<? super T, ? extends R> f, int parallelism) {
+        Preconditions.checkNotNull(f);
+        return then("map", parallelism, (in, out) -> out.accept(f.apply((T) in)));
+    }
+
+    public <R> Pipeline<R> mapOrdered(Function<? super T, ? extends R> f, int parallelism) {
+        return mapOrdered(f, parallelism, DEFAULT_REORDER_WINDOW_PER_THREAD * parallelism);
+    }
+
+    /**
+     * map, который отдает результаты в порядке входа. Элементы получают номера при записи во входную очередь стадии,
+     * потоки применяют f параллельно, а буфер переупорядочивания выпускает результаты дальше строго по номерам.
+     * Поток, обогнавший самый старый необработанный элемент на window позиций, ждет, пока тот не будет выпущен,
+     * так что буфер хранит не больше window результатов. Маленькое окно ограничивает память, но одна медленная запись
+     * останавливает всю стадию, большое сглаживает разброс времени обработки.<br>
+     * Порядок сохраняется относительно входной очереди стадии: для детерминированного результата предыдущие стадии
+     * тоже должны сохранять порядок, а sink - работать в один поток.
+     */
+    @SuppressWarnings("unchecked")
+    public <R> Pipeline<R> mapOrdered(Function<? super T, ? extends R> f, int parallelism, int window) {
+        Preconditions.checkNotNull(f);
+        Preconditions.checkArgument(window > 0);
+        return then("mapOrdered", parallelism, window, (in, out) -> out.accept(f.apply((T) in)));
+    }
+
+    @SuppressWarnings("unchecked")
+    public Pipeline<T> filter(Predicate<? super T> p, int parallelism) {
+        Preconditions.checkNotNull(p);
+        return then("filter", parallelism, (in, out) -> {
+            if (p.test((T) in))
+                out.accept(in);
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    public <R> Pipeline<R> flatMap(Function<? super T, ? extends Iterable<? extends R>> f, int parallelism) {
+        Preconditions.checkNotNull(f);
+        return then("flatMap", parallelism, (in, out) -> {
+            for (R next : f.apply((T) in))
+                out.accept(next);
+        });
+    }
+
+    private <R> Pipeline<R> then(String name, int parallelism, Step step) {
+        return then(name, parallelism, 0, step);
+    }
+
+    private <R> Pipeline<R> then(String name, int parallelism, int window, Step step) {
+        Preconditions.checkArgument(parallelism > 0);
+        List<Stage> next = new ArrayList<>(stages);
+        next.add(new Stage(name + "#" + stages.size(), parallelism, window, step));
+        return new Pipeline<>(source, Collections.unmodifiableList(next), bufferSize, backend);
+    }
+
+    public Execution to(Consumer<? super T> sink, Executor executor) {
+        return to(sink, 1, executor);
+    }
+
+    /**
+     * Запускает конвейер: source читается одним потоком, sink вызывается из parallelism потоков
+     */
+    @SuppressWarnings("unchecked")
+    public Execution to(Consumer<? super T> sink, int parallelism, Executor executor) {
+        Preconditions.checkNotNull(sink);
+        Preconditions.checkNotNull(executor);
+        Preconditions.checkArgument(parallelism > 0);
+        List<Stage> all = new ArrayList<>(stages);
+        all.add(new Stage("sink", parallelism, 0, (in, out) -> sink.accept((T) in)));
+        int workers = 1;
+        for (Stage stage : all)
+            workers += stage.parallelism;
+        if (executor instanceof ThreadPoolExecutor && ((ThreadPoolExecutor) executor).getMaximumPoolSize() < workers)
+            throw new IllegalArgumentException("Executor can not run all " + workers + " pipeline threads at once");
+        return new Execution(source, all, workers, bufferSize, backend).start(executor);
+    }
+
+    @FunctionalInterface
+    private interface Out {
+        void accept(Object next) throws InterruptedException;
+    }
+
+    @FunctionalInterface
+    private interface Step {
+        void apply(Object in, Out out) throws InterruptedException;
+    }
+
+    private static final class Stage {
+
+        final String name;
+        final int parallelism;
+        /* Размер окна переупорядочивания, 0 - стадия не сохраняет порядок */
+        final int window;
+        final Step step;
+
+        Stage(String name, int parallelism, int window, Step step) {
+            this.name = name;
+            this.parallelism = parallelism;
+            this.window = window;
+            this.step = step;
+        }
+
+        boolean ordered() {
+            return window > 0;
+        }
+
+    }
+
+    /**
+     * Элемент входной очереди упорядоченной стадии вместе с его номером
+     */
+    private static final class Sequenced {
+
+        final long seq;
+        final Object value;
+
+        Sequenced(long seq, Object value) {
+            this.seq = seq;
+            this.value = value;
+        }
+
+    }
+
+    /**
+     * Запись во входную очередь упорядоченной стадии. Номер выдается под локом вместе с записью,
+     * поэтому порядок номеров совпадает с порядком элементов в очереди при любом числе writer-ов.
+     * Иначе элемент с меньшим номером мог бы оказаться в очереди позади целого окна более поздних
+     * и стадия остановилась бы навсегда
+     */
+    private static final class Sequencer implements Out {
+
+        private final CancellableBlockingQueue<Object> queue;
+        private final ReentrantLock lock = new ReentrantLock();
+        private long next;
+
+        Sequencer(CancellableBlockingQueue<Object> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void accept(Object value) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                queue.add(new Sequenced(next, value));
+                next++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+    /**
+     * Кольцо из window ячеек, результат с номером seq лежит в ячейке seq % window.
+     * Результат, пришедший следом за последним выпущенным, выпускается вместе со всеми готовыми за ним.
+     * Выпуск идет под локом, поэтому следующая очередь получает результаты строго по порядку
+     * и блокирующая запись в нее останавливает всю стадию
+     */
+    private static final class ReorderBuffer {
+
+        private final Object[] results;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition released = lock.newCondition();
+        private long next;
+        private Throwable abortCause;
+
+        ReorderBuffer(int window) {
+            this.results = new Object[window];
+        }
+
+        void release(long seq, Object result, Out out) throws InterruptedException {
+            Preconditions.checkNotNull(result, "Nulls not permitted");
+            lock.lockInterruptibly();
+            try {
+                while (seq - next >= results.length) {
+                    checkAborted();
+                    released.await();
+                }
+                checkAborted();
+                results[(int) (seq % results.length)] = result;
+                if (seq != next)
+                    return;
+                int idx;
+                while ((result = results[idx = (int) (next % results.length)]) != null) {
+                    out.accept(result);
+                    results[idx] = null;
+                    next++;
+                }
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void abort(Throwable cause) {
+            lock.lock();
+            try {
+                abortCause = cause;
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void checkAborted() {
+            if (abortCause != null)
+                throw new CancellableBlockingQueue.AbortedException(abortCause);
+        }
+
+    }
+
+    /**
+     * Запущенный конвейер
+     */
+    public static final class Execution {
+
+        private final Iterable<?> source;
+        private final List<Stage> stages;
+        private final List<CancellableBlockingQueue<Object>> queues = new ArrayList<>();
+        /* Запись во входную очередь стадии, для упорядоченных стадий через Sequencer */
+        private final List<Out> inputs = new ArrayList<>();
+        private final List<ReorderBuffer> reorders = new ArrayList<>();
+        private final List<LongAdder> processed = new ArrayList<>();
+        private final LongAdder produced = new LongAdder();
+        private final AtomicInteger running;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final CompletableFuture<Void> completion = new CompletableFuture<>();
+        private long startNanos;
+
+        private Execution(Iterable<?> source, List<Stage> stages, int workers, int bufferSize, CancellableBlockingQueue.Backend backend) {
+            this.source = source;
+            this.stages = stages;
+            this.running = new AtomicInteger(workers);
+            int writers = 1;
+            for (Stage stage : stages) {
+                CancellableBlockingQueue<Object> queue = CancellableBlockingQueue.builder(Math.max(bufferSize, writers))
+                    .readers(stage.parallelism)
+                    .writers(writers)
+                    .backend(backend)
+                    .build();
+                queues.add(queue);
+                inputs.add(stage.ordered() ? new Sequencer(queue) : queue::add);
+                reorders.add(stage.ordered() ? new ReorderBuffer(stage.window) : null);
+                processed.add(new LongAdder());
+                writers = stage.parallelism;
+            }
+        }
+
+        private Execution start(Executor executor) {
+            startNanos = System.nanoTime();
+            try {
+                executor.execute(this::runSource);
+                for (int i = 0; i < stages.size(); i++) {
+                    for (int j = 0; j < stages.get(i).parallelism; j++) {
+                        int stage = i;
+                        executor.execute(() -> runStage(stage));
+                    }
+                }
+            } catch (RuntimeException e) {
+                abort(e);
+                throw e;
+            }
+            return this;
+        }
+
+        private void runSource() {
+            CancellableBlockingQueue<Object> out = queues.get(0);
+            Out emit = inputs.get(0);
+            try {
+                try {
+                    for (Object next : source) {
+                        emit.accept(next);
+                        produced.increment();
+                    }
+                } finally {
+                    out.writerDone();
+                }
+            } catch (Throwable t) {
+                abort(t);
+            } finally {
+                workerDone();
+            }
+        }
+
+        private void runStage(int stage) {
+            CancellableBlockingQueue<Object> in = queues.get(stage);
+            CancellableBlockingQueue<Object> out = stage + 1 < queues.size() ? queues.get(stage + 1) : null;
+            Step step = stages.get(stage).step;
+            Out emit = out != null ? inputs.get(stage + 1) : null;
+            ReorderBuffer reorder = reorders.get(stage);
+            LongAdder count = processed.get(stage);
+            try {
+                try {
+                    Object next;
+                    try {
+                        while ((next = in.poll()) != null) {
+                            if (reorder != null) {
+                                Sequenced item = (Sequenced) next;
+                                step.apply(item.value, res -> reorder.release(item.seq, res, emit));
+                            } else {
+                                step.apply(next, emit);
+                            }
+                            count.increment();
+                        }
+                    } finally {
+                        in.readerDone();
+                    }
+                } finally {
+                    if (out != null)
+                        out.writerDone();
+                }
+            } catch (Throwable t) {
+                abort(t);
+            } finally {
+                workerDone();
+            }
+        }
+
+        /**
+         * Первая причина остановки становится результатом, остальные потоки завершаются с {@link CancellableBlockingQueue.AbortedException}
+         */
+        private void abort(Throwable t) {
+            Throwable cause = t instanceof CancellableBlockingQueue.AbortedException ? t.getCause() : t;
+            if (!failure.compareAndSet(null, cause))
+                return;
+            for (CancellableBlockingQueue<Object> queue : queues)
+                queue.abort(cause);
+            for (ReorderBuffer reorder : reorders) {
+                if (reorder != null)
+                    reorder.abort(cause);
+            }
+        }
+
+        private void workerDone() {
+            if (running.decrementAndGet() != 0)
+                return;
+            Throwable cause = failure.get();
+            if (cause != null)
+                completion.completeExceptionally(cause);
+            else
+                completion.complete(null);
+        }
+
+        /**
+         * Останавливает конвейер, не дожидаясь обработки оставшихся элементов
+         */
+        public void cancel() {
+            abort(new CancellationException("Pipeline cancelled"));
+        }
+
+        /**
+         * Завершается, когда все потоки конвейера вышли: успешно, если sink обработал последний элемент,
+         * иначе исключением первой упавшей стадии
+         */
+        public CompletableFuture<Void> completion() {
+            return completion.copy();
+        }
+
+        /**
+         * Ждет завершения, исключение упавшей стадии пробрасывается как есть, если оно unchecked
+         */
+        public void await() throws InterruptedException {
+            try {
+                completion.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new CompletionException(cause);
+            }
+        }
+
+        /**
+         * Снимок счетчиков по стадиям, включая sink
+         */
+        public List<StageStats> stats() {
+            double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+            List<StageStats> res = new ArrayList<>(stages.size());
+            for (int i = 0; i < stages.size(); i++) {
+                Stage stage = stages.get(i);
+                CancellableBlockingQueue<Object> in = queues.get(i);
+                long count = processed.get(i).sum();
+                res.add(new StageStats(stage.name, stage.parallelism, count, count / seconds, in.size(), in.capacity()));
+            }
+            return res;
+        }
+
+        /**
+         * Сколько элементов source отдал в конвейер
+         */
+        public long produced() {
+            return produced.sum();
+        }
+
+    }
+
+    /**
+     * Счетчики стадии: обработанные элементы, средняя пропускная способность с момента запуска
+     * и заполненность входной очереди. Очередь, стабильно заполненная до предела, означает, что стадия
+     * не успевает и ей нужна большая параллельность; пустая - что она ждет предыдущую
+     */
+    public static final class StageStats {
+
+        private final String name;
+        private final int parallelism;
+        private final long processed;
+        private final double throughputPerSecond;
+        private final int queueSize;
+        private final int queueCapacity;
+
+        StageStats(String name, int parallelism, long processed, double throughputPerSecond, int queueSize, int queueCapacity) {
+            this.name = name;
+            this.parallelism = parallelism;
+            this.processed = processed;
+            this.throughputPerSecond = throughputPerSecond;
+            this.queueSize = queueSize;
+            this.queueCapacity = queueCapacity;
+        }
+
+        public String name() {return name;}
+        public int parallelism() {return parallelism;}
+        public long processed() {return processed;}
+        public double throughputPerSecond() {return throughputPerSecond;}
+        public int queueSize() {return queueSize;}
+        public int queueCapacity() {return queueCapacity;}
+
+        public double occupancy() {
+            return (double) Math.min(queueSize, queueCapacity) / queueCapacity;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s x%d: processed=%d, throughput=%.1f/s, queue=%d/%d", name, parallelism, processed, throughputPerSecond, queueSize, queueCapacity);
+        }
+
+    }
+
+}
@@ -0,0 +1,217 @@
+package org.texhnolyzze.common;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Primitive counterparts of {@link ParallelMergeSort}, same ping-pong scheme over one auxiliary buffer.
+ * Subarrays of at most cutoff elements are not forked. Equal primitives are indistinguishable, so such a leaf
+ * is sorted with {@link Arrays#sort(long[], int, int)}; when a permutation is carried along (sort by key),
+ * it is merge sorted sequentially down to a stable insertion sort instead.
+ */
+final class PrimitiveMergeSort {
+
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+
+    private PrimitiveMergeSort() {}
+
+    /**
+     * Maps a double to a long with the same order as {@link Double#compare}: -0.0 before 0.0, NaN last.
+     * NaNs are canonicalized, so their payload does not survive the round trip.
+     */
+    static long sortableBits(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ (bits >> 63) & Long.MAX_VALUE;
+    }
+
+    static double fromSortableBits(long bits) {
+        return Double.longBitsToDouble(bits ^ (bits >> 63) & Long.MAX_VALUE);
+    }
+
+    /**
+     * On entry src and dst hold the same keys (and srcIdx and dstIdx the same indices) in [lo, hi),
+     * on exit dst holds them sorted
+     */
+    @SuppressWarnings("serial")
+    static final class LongTask extends RecursiveAction {
+
+        private final long[] src;
+        private final int srcBase;
+        private final long[] dst;
+        private final int dstBase;
+        private final int[] srcIdx;
+        private final int[] dstIdx;
+        private final int lo, hi;
+        private final int cutoff;
+
+        LongTask(long[] src, int srcBase, long[] dst, int dstBase, int[] srcIdx, int[] dstIdx, int lo, int hi, int cutoff) {
+            this.src = src;
+            this.srcBase = srcBase;
+            this.dst = dst;
+            this.dstBase = dstBase;
+            this.srcIdx = srcIdx;
+            this.dstIdx = dstIdx;
+            this.lo = lo;
+            this.hi = hi;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected void compute() {
+            int n = hi - lo;
+            if (n <= cutoff && dstIdx == null) {
+                Arrays.sort(dst, dstBase + lo, dstBase + hi);
+                return;
+            }
+            if (n <= INSERTION_SORT_THRESHOLD) {
+                insertionSort(dst, dstIdx, dstBase + lo, dstBase + hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            LongTask l = new LongTask(dst, dstBase, src, srcBase, dstIdx, srcIdx, lo, mid, cutoff);
+            LongTask r = new LongTask(dst, dstBase, src, srcBase, dstIdx, srcIdx, mid, hi, cutoff);
+            if (n <= cutoff) {
+                l.compute();
+                r.compute();
+            } else {
+                l.fork();
+                r.compute();
+                l.join();
+            }
+            merge(srcBase + lo, srcBase + mid, srcBase + hi, dstBase + lo);
+        }
+
+        private void merge(int from, int mid, int to, int k) {
+            if (src[mid - 1] <= src[mid]) {
+                copy(from, k, to - from);
+                return;
+            }
+            int i = from;
+            int j = mid;
+            while (i < mid && j < to) {
+                if (src[j] < src[i]) {
+                    if (dstIdx != null)
+                        dstIdx[k] = srcIdx[j];
+                    dst[k++] = src[j++];
+                } else {
+                    if (dstIdx != null)
+                        dstIdx[k] = srcIdx[i];
+                    dst[k++] = src[i++];
+                }
+            }
+            if (i < mid)
+                copy(i, k, mid - i);
+            else
+                copy(j, k, to - j);
+        }
+
+        private void copy(int from, int k, int len) {
+            System.arraycopy(src, from, dst, k, len);
+            if (dstIdx != null)
+                System.arraycopy(srcIdx, from, dstIdx, k, len);
+        }
+
+        private static void insertionSort(long[] keys, int[] idx, int from, int to) {
+            for (int i = from + 1; i < to; i++) {
+                long key = keys[i];
+                int index = idx[i];
+                int j = i - 1;
+                while (j >= from && key < keys[j]) {
+                    keys[j + 1] = keys[j];
+                    idx[j + 1] = idx[j];
+                    j--;
+                }
+                keys[j + 1] = key;
+                idx[j + 1] = index;
+            }
+        }
+
+    }
+
+    @SuppressWarnings("serial")
+    static final class IntTask extends RecursiveAction {
+
+        private final int[] src;
+        private final int srcBase;
+        private final int[] dst;
+        private final int dstBase;
+        private final int lo, hi;
+        private final int cutoff;
+
+        IntTask(int[] src, int srcBase, int[] dst, int dstBase, int lo, int hi, int cutoff) {
+            this.src = src;
+            this.srcBase = srcBase;
+            this.dst = dst;
+            this.dstBase = dstBase;
+            this.lo = lo;
+            this.hi = hi;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= cutoff) {
+                Arrays.sort(dst, dstBase + lo, dstBase + hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            IntTask l = new IntTask(dst, dstBase, src, srcBase, lo, mid, cutoff);
+            IntTask r = new IntTask(dst, dstBase, src, srcBase, mid, hi, cutoff);
+            l.fork();
+            r.compute();
+            l.join();
+            merge(srcBase + lo, srcBase + mid, srcBase + hi, dstBase + lo);
+        }
+
+        private void merge(int from, int mid, int to, int k) {
+            if (src[mid - 1] <= src[mid]) {
+                System.arraycopy(src, from, dst, k, to - from);
+                return;
+            }
+            int i = from;
+            int j = mid;
+            while (i < mid && j < to)
+                dst[k++] = src[j] < src[i] ? src[j++] : src[i++];
+            if (i < mid)
+                System.arraycopy(src, i, dst, k, mid - i);
+            else
+                System.arraycopy(src, j, dst, k, to - j);
+        }
+
+    }
+
+    @FunctionalInterface
+    interface RangeBody {
+        void apply(int from, int to);
+    }
+
+    /**
+     * Splits [from, to) in halves until chunks are at most grain long and runs body on them in parallel
+     */
+    @SuppressWarnings("serial")
+    static final class RangeTask extends RecursiveAction {
+
+        private final RangeBody body;
+        private final int from, to;
+        private final int grain;
+
+        RangeTask(RangeBody body, int from, int to, int grain) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                body.apply(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(body, from, mid, grain), new RangeTask(body, mid, to, grain));
+        }
+
+    }
+
+}
@@ -0,0 +1,306 @@
+package org.texhnolyzze.common;
+
+import com.google.common.base.Preconditions;
+import org.texhnolyzze.common.RingBufferBlockingQueue.PaddedAtomicLong;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Общая часть {@link CancellableLongBlockingQueue} и {@link CancellableIntBlockingQueue}: кольцо по схеме
+ * {@link RingBufferBlockingQueue} поверх примитивного массива и протокол reader-ов/writer-ов
+ * {@link CancellableBlockingQueue}.<br>
+ * Конец данных передается не барьером в буфере, а флагом: последний {@link #writerDone()} выставляет его
+ * после того, как все writer-ы дописали, поэтому reader, увидевший флаг и пустой буфер, знает, что данных больше нет.
+ * Пачки копируются {@link System#arraycopy} в подряд идущие ячейки, захваченные одним CAS-ом.
+ */
+abstract class PrimitiveRingBuffer {
+
+    /* long[] или int[] */
+    final Object buffer;
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+
+    private final PaddedAtomicLong head = new PaddedAtomicLong();
+    private final PaddedAtomicLong tail = new PaddedAtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    /* Меняются только под локом */
+    private volatile int waitingTakers;
+    private volatile int waitingPutters;
+
+    private final AtomicInteger activeReaders;
+    private final AtomicInteger activeWriters;
+    private final AtomicReference<Throwable> abortCause = new AtomicReference<>();
+    private volatile boolean endOfStream;
+
+    PrimitiveRingBuffer(Class<?> componentType, int maxSize, int numReaders, int numWriters) {
+        Preconditions.checkArgument(numReaders > 0 && numWriters > 0);
+        Preconditions.checkArgument(maxSize >= numWriters, "maxSize must be >= numWriters to avoid deadlocks");
+        Preconditions.checkArgument(maxSize <= 1 << 30, "maxSize must be <= 2^30");
+        // Не меньше двух ячеек, как в RingBufferBlockingQueue
+        this.capacity = Math.max(2, Integer.highestOneBit(maxSize - 1) << 1);
+        this.mask = capacity - 1;
+        this.buffer = Array.newInstance(componentType, capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            sequences.set(i, i);
+        this.activeReaders = new AtomicInteger(numReaders);
+        this.activeWriters = new AtomicInteger(numWriters);
+    }
+
+    final int index(long pos) {
+        return (int) pos & mask;
+    }
+
+    /**
+     * Захватывает ячейку для одного элемента, при заполненном буфере ждет.
+     * Вызывающий записывает значение в buffer[index(pos)] и вызывает {@link #publish(long)}
+     */
+    final long claim() throws InterruptedException {
+        checkWritable();
+        long pos = tail.get();
+        for (;;) {
+            long dif = sequences.get(index(pos)) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    return pos;
+            } else if (dif < 0) {
+                Preconditions.checkState(activeReaders.get() != 0, "All readers done");
+                awaitNotFull();
+            }
+            pos = tail.get();
+        }
+    }
+
+    final void publish(long pos) {
+        sequences.set(index(pos), pos + 1);
+        if (waitingTakers > 0)
+            signalAll(notEmpty);
+    }
+
+    /**
+     * @return false, если все reader-ы завершились и оставшиеся элементы никому не нужны
+     */
+    final boolean offerAll(Object src, int off, int len) throws InterruptedException {
+        Preconditions.checkPositionIndexes(off, off + len, Array.getLength(src));
+        Preconditions.checkState(activeWriters.get() != 0, "All writers done");
+        while (len > 0) {
+            checkAborted();
+            if (activeReaders.get() == 0)
+                return false;
+            int n = tryOffer(src, off, len);
+            if (n == 0) {
+                awaitNotFull();
+                continue;
+            }
+            off += n;
+            len -= n;
+        }
+        return true;
+    }
+
+    private int tryOffer(Object src, int off, int len) {
+        long pos = tail.get();
+        for (;;) {
+            int n = 0;
+            while (n < len && n < capacity && sequences.get(index(pos + n)) == pos + n)
+                n++;
+            if (n == 0) {
+                if (sequences.get(index(pos)) - pos < 0)
+                    return 0;
+            } else if (tail.compareAndSet(pos, pos + n)) {
+                int idx = index(pos);
+                int first = Math.min(n, capacity - idx);
+                System.arraycopy(src, off, buffer, idx, first);
+                System.arraycopy(src, off + first, buffer, 0, n - first);
+                for (int i = 0; i < n; i++)
+                    sequences.set(index(pos + i), pos + i + 1);
+                if (waitingTakers > 0)
+                    signalAll(notEmpty);
+                return n;
+            }
+            pos = tail.get();
+        }
+    }
+
+    /**
+     * Ждет хотя бы один элемент, после чего без ожидания забирает до len элементов в dst начиная с off.
+     * @return число забранных элементов или -1, если данных больше нет
+     */
+    final int drain(Object dst, int off, int len) throws InterruptedException {
+        Preconditions.checkPositionIndexes(off, off + len, Array.getLength(dst));
+        Preconditions.checkArgument(len > 0);
+        for (;;) {
+            checkAborted();
+            int n = tryPoll(dst, off, len);
+            if (n > 0)
+                return n;
+            if (endOfStream) {
+                // Флаг выставлен после последней записи, поэтому повторная попытка видит всё записанное
+                n = tryPoll(dst, off, len);
+                return n > 0 ? n : -1;
+            }
+            awaitNotEmpty();
+        }
+    }
+
+    private int tryPoll(Object dst, int off, int len) {
+        long pos = head.get();
+        for (;;) {
+            int n = 0;
+            while (n < len && n < capacity && sequences.get(index(pos + n)) == pos + n + 1)
+                n++;
+            if (n == 0) {
+                if (sequences.get(index(pos)) - (pos + 1) < 0)
+                    return 0;
+            } else if (head.compareAndSet(pos, pos + n)) {
+                if (dst != null) {
+                    int idx = index(pos);
+                    int first = Math.min(n, capacity - idx);
+                    System.arraycopy(buffer, idx, dst, off, first);
+                    System.arraycopy(buffer, 0, dst, off + first, n - first);
+                }
+                for (int i = 0; i < n; i++)
+                    sequences.set(index(pos + i), pos + i + capacity);
+                if (waitingPutters > 0)
+                    signalAll(notFull);
+                return n;
+            }
+            pos = head.get();
+        }
+    }
+
+    private boolean hasFreeSlot() {
+        long pos = tail.get();
+        return sequences.get(index(pos)) - pos >= 0;
+    }
+
+    private boolean hasElement() {
+        long pos = head.get();
+        return sequences.get(index(pos)) - (pos + 1) >= 0;
+    }
+
+    /**
+     * Ожидающий регистрируется в счетчике под локом и перепроверяет буфер, поэтому сигнал не теряется
+     */
+    private void awaitNotFull() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            waitingPutters++;
+            try {
+                checkAborted();
+                if (!hasFreeSlot())
+                    notFull.await();
+            } finally {
+                waitingPutters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+        checkAborted();
+    }
+
+    private void awaitNotEmpty() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            waitingTakers++;
+            try {
+                checkAborted();
+                if (!hasElement() && !endOfStream)
+                    notEmpty.await();
+            } finally {
+                waitingTakers--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalAll(Condition condition) {
+        lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkWritable() {
+        checkAborted();
+        Preconditions.checkState(activeWriters.get() != 0, "All writers done");
+        Preconditions.checkState(activeReaders.get() != 0, "All readers done");
+    }
+
+    private void checkAborted() {
+        Throwable cause = abortCause.get();
+        if (cause != null)
+            throw new CancellableBlockingQueue.AbortedException(cause);
+    }
+
+    public void writerDone() {
+        int activeRemained = activeWriters.decrementAndGet();
+        Preconditions.checkState(activeRemained >= 0, "Active writers count is negative");
+        if (activeRemained == 0) {
+            endOfStream = true;
+            signalAll(notEmpty);
+        }
+    }
+
+    public void readerDone() {
+        int activeRemained = activeReaders.decrementAndGet();
+        Preconditions.checkState(activeRemained >= 0, "Active readers count is negative");
+        if (activeRemained == 0) {
+            while (tryPoll(null, 0, capacity) > 0) {
+                // Освобождаем место заблокированным writer-ам
+            }
+        }
+    }
+
+    /**
+     * См. {@link CancellableBlockingQueue#abort(Throwable)}
+     */
+    public void abort(Throwable cause) {
+        Preconditions.checkNotNull(cause);
+        if (!abortCause.compareAndSet(null, cause))
+            return;
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isAborted() {
+        return abortCause.get() != null;
+    }
+
+    /**
+     * Приблизительное число элементов в буфере
+     */
+    public int size() {
+        for (;;) {
+            long h = head.get();
+            long t = tail.get();
+            if (h == head.get())
+                return (int) Math.max(0, Math.min(t - h, capacity));
+        }
+    }
+
+    /**
+     * Сколько элементов помещается в буфер, maxSize округляется вверх до степени двойки, но не меньше двух
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+}
@@ -0,0 +1,171 @@
+package org.texhnolyzze.common;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * См. {@link CancellableBlockingQueue#asPublisher(Executor)}.<br>
+ * Доставка сериализована счетчиком wip: писатель, спрос или отмена увеличивают его, и только переход из 0
+ * ставит задачу на executor. Задача крутится, пока за время прохода кто-то снова увеличивал счетчик,
+ * поэтому сигнал о новых данных не теряется и onNext никогда не вызывается из двух потоков сразу.
+ */
+final class QueuePublisher<E> implements Flow.Publisher<E> {
+
+    private final CancellableBlockingQueue<E> queue;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    QueuePublisher(CancellableBlockingQueue<E> queue, Executor executor) {
+        this.queue = queue;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super E> subscriber) {
+        Preconditions.checkNotNull(subscriber);
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override public void request(long n) {}
+                @Override public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException("Queue can be published to a single subscriber"));
+            return;
+        }
+        Subscription<E> subscription = new Subscription<>(queue, executor, subscriber);
+        queue.setElementsListener(subscription::schedule);
+        subscriber.onSubscribe(subscription);
+        subscription.schedule();
+    }
+
+    private static final class Subscription<E> implements Flow.Subscription {
+
+        private final CancellableBlockingQueue<E> queue;
+        private final Executor executor;
+        private final Flow.Subscriber<? super E> subscriber;
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicLong requested = new AtomicLong();
+        private volatile Throwable requestError;
+        private volatile boolean cancelled;
+        /* Только в задаче доставки */
+        private boolean done;
+
+        Subscription(CancellableBlockingQueue<E> queue, Executor executor, Flow.Subscriber<? super E> subscriber) {
+            this.queue = queue;
+            this.executor = executor;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                requestError = new IllegalArgumentException("Requested " + n + " elements, must be positive");
+            } else {
+                long r;
+                do {
+                    r = requested.get();
+                } while (!requested.compareAndSet(r, r + n < 0 ? Long.MAX_VALUE : r + n));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        void schedule() {
+            if (wip.getAndIncrement() != 0)
+                return;
+            try {
+                executor.execute(this::run);
+            } catch (RuntimeException e) {
+                // Доставлять больше нечем, поток данных останавливается
+                queue.abort(e);
+                wip.set(0);
+            }
+        }
+
+        private void run() {
+            int missed = 1;
+            for (;;) {
+                if (!done)
+                    deliver();
+                missed = wip.addAndGet(-missed);
+                if (missed == 0)
+                    return;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void deliver() {
+            try {
+                if (cancelled) {
+                    queue.abort(new CancellationException("Subscription cancelled"));
+                    finish();
+                    return;
+                }
+                Throwable error = requestError;
+                if (error != null) {
+                    queue.abort(error);
+                    finish();
+                    subscriber.onError(error);
+                    return;
+                }
+                long r = requested.get();
+                long emitted = 0;
+                while (!cancelled) {
+                    if (emitted == r) {
+                        // Завершение и ошибка сообщаются и без спроса. После abort в буфере тоже барьер, поэтому abort проверяется первым
+                        queue.checkAborted();
+                        if (queue.endReached()) {
+                            finish();
+                            subscriber.onComplete();
+                            return;
+                        }
+                        r = requested.addAndGet(-emitted);
+                        emitted = 0;
+                        if (r == 0)
+                            return;
+                    }
+                    Object next = queue.pollNow();
+                    if (next == null) {
+                        requested.addAndGet(-emitted);
+                        return;
+                    }
+                    if (next == CancellableBlockingQueue.BARRIER) {
+                        finish();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    subscriber.onNext((E) next);
+                    emitted++;
+                }
+                requested.addAndGet(-emitted);
+            } catch (CancellableBlockingQueue.AbortedException e) {
+                finish();
+                if (!cancelled)
+                    subscriber.onError(e.getCause());
+            } catch (RuntimeException e) {
+                // Подписчик нарушил протокол, исключение из onNext останавливает поток данных
+                queue.abort(e);
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (!done) {
+                done = true;
+                queue.readerDone();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,89 @@
+package org.texhnolyzze.common;
+
+import java.util.Arrays;
+
+/**
+ * Неизменяемый снимок счетчиков {@link CancellableBlockingQueue}, см. {@link CancellableBlockingQueue.Builder#recordStats()}.
+ * Счетчики читаются по одному, поэтому снимок под нагрузкой не атомарен.<br>
+ * Если reader-ы долго ждут пустой очереди, а гистограмма прижата к нулю, стадия упирается в writer-ов;
+ * если writer-ы ждут заполненной очереди, а гистограмма прижата к полной, - в reader-ов.
+ * Барьер конца данных в счетчики не попадает.
+ */
+public final class QueueStats {
+
+    /**
+     * Гистограмма заполненности делит емкость на столько равных интервалов
+     */
+    public static final int OCCUPANCY_BUCKETS = 10;
+
+    private final long enqueuedCount;
+    private final long dequeuedCount;
+    private final long writerBlockedNanos;
+    private final long readerBlockedNanos;
+    private final long[] occupancyHistogram;
+    private final int capacity;
+
+    QueueStats(long enqueuedCount, long dequeuedCount, long writerBlockedNanos, long readerBlockedNanos, long[] occupancyHistogram, int capacity) {
+        this.enqueuedCount = enqueuedCount;
+        this.dequeuedCount = dequeuedCount;
+        this.writerBlockedNanos = writerBlockedNanos;
+        this.readerBlockedNanos = readerBlockedNanos;
+        this.occupancyHistogram = occupancyHistogram;
+        this.capacity = capacity;
+    }
+
+    static int bucket(int size, int capacity) {
+        return Math.min((int) ((long) size * OCCUPANCY_BUCKETS / capacity), OCCUPANCY_BUCKETS - 1);
+    }
+
+    public long enqueuedCount() {return enqueuedCount;}
+    public long dequeuedCount() {return dequeuedCount;}
+
+    /**
+     * Суммарное время, которое writer-ы ждали места в заполненной очереди
+     */
+    public long writerBlockedNanos() {return writerBlockedNanos;}
+
+    /**
+     * Суммарное время, которое reader-ы ждали элементов в пустой очереди
+     */
+    public long readerBlockedNanos() {return readerBlockedNanos;}
+    public int capacity() {return capacity;}
+
+    /**
+     * Число замеров заполненности по интервалам: в i-м интервале размер буфера был в [i, i + 1) десятых емкости,
+     * полная очередь попадает в последний интервал
+     */
+    public long[] occupancyHistogram() {
+        return occupancyHistogram.clone();
+    }
+
+    public long occupancySamples() {
+        long res = 0;
+        for (long count : occupancyHistogram)
+            res += count;
+        return res;
+    }
+
+    /**
+     * Средняя заполненность от 0 до 1 по серединам интервалов гистограммы, 0 без замеров
+     */
+    public double averageOccupancy() {
+        long samples = occupancySamples();
+        if (samples == 0)
+            return 0.0;
+        double sum = 0;
+        for (int i = 0; i < occupancyHistogram.length; i++)
+            sum += occupancyHistogram[i] * (i + 0.5);
+        return sum / samples / OCCUPANCY_BUCKETS;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "enqueued=%d, dequeued=%d, writerBlockedNanos=%d, readerBlockedNanos=%d, averageOccupancy=%.2f, occupancy=%s, capacity=%d",
+            enqueuedCount, dequeuedCount, writerBlockedNanos, readerBlockedNanos, averageOccupancy(), Arrays.toString(occupancyHistogram), capacity
+        );
+    }
+
+}
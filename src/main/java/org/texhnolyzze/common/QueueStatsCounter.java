@@ -0,0 +1,82 @@
+package org.texhnolyzze.common;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Счетчики за {@link QueueStats}. {@link LongAdder} раскладывает обновления из разных потоков по ячейкам,
+ * поэтому запись и чтение из очереди не спорят за счетчик. Заполненность измеряется не на каждой операции,
+ * а в среднем раз в {@link #SAMPLE_RATE} операций, так как размер буфера считается не бесплатно.
+ * Выключенный счетчик ничего не делает.
+ */
+final class QueueStatsCounter {
+
+    static final QueueStatsCounter DISABLED = new QueueStatsCounter(false);
+
+    static final int SAMPLE_RATE = 64;
+
+    private final boolean enabled;
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dequeued = new LongAdder();
+    private final LongAdder writerBlocked = new LongAdder();
+    private final LongAdder readerBlocked = new LongAdder();
+    private final AtomicLongArray occupancy = new AtomicLongArray(QueueStats.OCCUPANCY_BUCKETS);
+
+    QueueStatsCounter(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return true, если после этой операции нужно замерить заполненность через {@link #recordOccupancy}
+     */
+    boolean recordEnqueued(int n) {
+        if (!enabled)
+            return false;
+        enqueued.add(n);
+        return sampled();
+    }
+
+    /**
+     * @return true, если после этой операции нужно замерить заполненность через {@link #recordOccupancy}
+     */
+    boolean recordDequeued(int n) {
+        if (!enabled)
+            return false;
+        dequeued.add(n);
+        return sampled();
+    }
+
+    private static boolean sampled() {
+        return ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0;
+    }
+
+    void recordOccupancy(int size, int capacity) {
+        occupancy.incrementAndGet(QueueStats.bucket(size, capacity));
+    }
+
+    /**
+     * Возвращает момент начала ожидания для {@link #recordWriterBlocked} и {@link #recordReaderBlocked}
+     */
+    long startWait() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    void recordWriterBlocked(long start) {
+        if (enabled)
+            writerBlocked.add(System.nanoTime() - start);
+    }
+
+    void recordReaderBlocked(long start) {
+        if (enabled)
+            readerBlocked.add(System.nanoTime() - start);
+    }
+
+    QueueStats snapshot(int capacity) {
+        long[] histogram = new long[occupancy.length()];
+        for (int i = 0; i < histogram.length; i++)
+            histogram[i] = occupancy.get(i);
+        return new QueueStats(enqueued.sum(), dequeued.sum(), writerBlocked.sum(), readerBlocked.sum(), histogram, capacity);
+    }
+
+}
@@ -0,0 +1,97 @@
+package org.texhnolyzze.common;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.Flow;
+
+/**
+ * См. {@link CancellableBlockingQueue#asSubscriber()}.<br>
+ * outstanding - сколько элементов запрошено, но еще не пришло. Вместе с занятыми ячейками оно не превышает
+ * емкость очереди, а дозапрос идет порциями не меньше четверти емкости, чтобы не дергать источник на каждый poll.
+ * Вызовы методов подписки сериализованы монитором, как требует {@link Flow.Subscription}.
+ */
+final class QueueSubscriber<E> implements Flow.Subscriber<E> {
+
+    private final CancellableBlockingQueue<E> queue;
+    private final int batch;
+    private Flow.Subscription subscription;
+    private long outstanding;
+    private boolean done;
+
+    QueueSubscriber(CancellableBlockingQueue<E> queue) {
+        this.queue = queue;
+        this.batch = Math.max(1, queue.capacity() / 4);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        Preconditions.checkNotNull(subscription);
+        synchronized (this) {
+            if (this.subscription != null) {
+                subscription.cancel();
+                return;
+            }
+            this.subscription = subscription;
+        }
+        queue.setSpaceListener(this::refill);
+        refill();
+    }
+
+    private synchronized void refill() {
+        if (done)
+            return;
+        long free = queue.capacity() - queue.size() - outstanding;
+        if (free >= batch || free > 0 && outstanding == 0) {
+            outstanding += free;
+            subscription.request(free);
+        }
+    }
+
+    @Override
+    public void onNext(E item) {
+        synchronized (this) {
+            if (done)
+                return;
+            outstanding--;
+        }
+        try {
+            queue.add(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queue.abort(e);
+            cancel();
+        } catch (IllegalStateException e) {
+            // Очередь прервана или reader-ы завершились, данные больше никому не нужны
+            cancel();
+        }
+    }
+
+    private synchronized void cancel() {
+        if (!done) {
+            done = true;
+            subscription.cancel();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        synchronized (this) {
+            done = true;
+        }
+        queue.abort(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            done = true;
+        }
+        try {
+            queue.writerDone();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queue.abort(e);
+        }
+    }
+
+}
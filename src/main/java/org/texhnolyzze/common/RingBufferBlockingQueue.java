@@ -0,0 +1,413 @@
+package org.texhnolyzze.common;
+
+import com.google.common.base.Preconditions;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ограниченная MPMC очередь на заранее выделенном кольцевом массиве (схема Д. Вьюкова).<br>
+ * У каждой ячейки есть номер последовательности: ячейка свободна для записи с позиции pos, когда её номер равен pos,
+ * и готова к чтению, когда номер равен pos + 1. Писатели и читатели захватывают позиции CAS-ом по своему счетчику,
+ * поэтому {@link #offer} и {@link #poll} не берут блокировок и не выделяют память.<br>
+ * Блокировка нужна только медленному пути {@link #put}/{@link #take}: ожидающий поток регистрируется в счетчике
+ * под локом, перепроверяет очередь и засыпает на условии. Противоположная сторона берет лок только если
+ * счетчик ожидающих ненулевой.<br>
+ * Размер округляется вверх до степени двойки, но не меньше двух.<br>
+ * {@link #iterator()} слабо согласованный: обходит позиции между головой и хвостом на момент создания и пропускает
+ * уже прочитанные ячейки. Удаление через итератор (и {@link #remove(Object)}) заменяет элемент в ячейке меткой,
+ * читатели пропускают такие ячейки. До этого помеченная ячейка занимает место и учитывается в {@link #size()}.
+ *
+ * @param <E> Тип элементов
+ */
+class RingBufferBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+    /* Метка удаленного из середины очереди элемента */
+    private static final Object REMOVED = new Object();
+
+    private final Object[] buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final PaddedAtomicLong head = new PaddedAtomicLong();
+    private final PaddedAtomicLong tail = new PaddedAtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    /* Меняются только под локом */
+    private volatile int waitingTakers;
+    private volatile int waitingPutters;
+
+    RingBufferBlockingQueue(int capacity) {
+        Preconditions.checkArgument(capacity > 0 && capacity <= 1 << 30, "capacity must be in [1, 2^30]");
+        // Схеме нужно хотя бы две ячейки: в единственной номер pos + 1 свободной ячейки совпал бы с номером готовой к чтению
+        int size = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+        this.buffer = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        this.mask = size - 1;
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (!tryOffer(e))
+            return false;
+        if (waitingTakers > 0)
+            signal(notEmpty);
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        E e = tryPoll();
+        if (e != null && waitingPutters > 0)
+            signal(notFull);
+        return e;
+    }
+
+    private boolean tryOffer(E e) {
+        Preconditions.checkNotNull(e);
+        long pos = tail.get();
+        for (;;) {
+            int idx = (int) pos & mask;
+            long dif = sequences.get(idx) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer[idx] = e;
+                    // Публикация должна быть упорядочена с последующим чтением счетчика ожидающих, поэтому volatile запись
+                    sequences.set(idx, pos + 1);
+                    return true;
+                }
+            } else if (dif < 0) {
+                return false;
+            }
+            pos = tail.get();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private E tryPoll() {
+        long pos = head.get();
+        for (;;) {
+            int idx = (int) pos & mask;
+            long dif = sequences.get(idx) - (pos + 1);
+            if (dif == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    // Атомарно, чтобы не разойтись с удалением через итератор
+                    Object e = SLOTS.getAndSet(buffer, idx, null);
+                    sequences.set(idx, pos + buffer.length);
+                    if (e != REMOVED)
+                        return (E) e;
+                    if (waitingPutters > 0)
+                        signalAll(notFull);
+                }
+            } else if (dif < 0) {
+                return null;
+            }
+            pos = head.get();
+        }
+    }
+
+    /**
+     * Записывает элементы начиная с off в подряд идущие свободные ячейки, захватывая их одним CAS-ом.
+     * Не блокируется, возвращает число записанных элементов
+     */
+    int offerAll(Object[] elems, int off, int len) {
+        long pos = tail.get();
+        for (;;) {
+            int n = 0;
+            while (n < len && n < buffer.length && sequences.get((int) (pos + n) & mask) == pos + n)
+                n++;
+            if (n == 0) {
+                if (sequences.get((int) pos & mask) - pos < 0)
+                    return 0;
+            } else if (tail.compareAndSet(pos, pos + n)) {
+                for (int i = 0; i < n; i++) {
+                    int idx = (int) (pos + i) & mask;
+                    buffer[idx] = elems[off + i];
+                    sequences.set(idx, pos + i + 1);
+                }
+                if (waitingTakers > 0)
+                    signalAll(notEmpty);
+                return n;
+            }
+            pos = tail.get();
+        }
+    }
+
+    private void signal(Condition condition) {
+        lock.lock();
+        try {
+            condition.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalAll(Condition condition) {
+        lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        if (offer(e))
+            return;
+        lock.lockInterruptibly();
+        try {
+            waitingPutters++;
+            try {
+                while (!tryOffer(e))
+                    notFull.await();
+            } finally {
+                waitingPutters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (waitingTakers > 0)
+            signal(notEmpty);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (offer(e))
+            return true;
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            waitingPutters++;
+            try {
+                while (!tryOffer(e)) {
+                    if (nanos <= 0)
+                        return false;
+                    nanos = notFull.awaitNanos(nanos);
+                }
+            } finally {
+                waitingPutters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (waitingTakers > 0)
+            signal(notEmpty);
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e = poll();
+        if (e != null)
+            return e;
+        lock.lockInterruptibly();
+        try {
+            waitingTakers++;
+            try {
+                while ((e = tryPoll()) == null)
+                    notEmpty.await();
+            } finally {
+                waitingTakers--;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (waitingPutters > 0)
+            signal(notFull);
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E e = poll();
+        if (e != null)
+            return e;
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            waitingTakers++;
+            try {
+                while ((e = tryPoll()) == null) {
+                    if (nanos <= 0)
+                        return null;
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+            } finally {
+                waitingTakers--;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (waitingPutters > 0)
+            signal(notFull);
+        return e;
+    }
+
+    /**
+     * Приблизительно, без гарантий при конкурентном доступе
+     */
+    @Override
+    public E peek() {
+        Iterator<E> it = iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    @Override
+    public int size() {
+        for (;;) {
+            long h = head.get();
+            long t = tail.get();
+            if (h == head.get())
+                return (int) Math.max(0, Math.min(t - h, buffer.length));
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return buffer.length - size();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        Preconditions.checkArgument(c != this);
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = tryPoll()) != null) {
+            c.add(e);
+            n++;
+        }
+        if (n > 0 && waitingPutters > 0)
+            signalAll(notFull);
+        return n;
+    }
+
+    @Override
+    public void clear() {
+        boolean cleared = false;
+        while (tryPoll() != null)
+            cleared = true;
+        if (cleared && waitingPutters > 0)
+            signalAll(notFull);
+    }
+
+    /**
+     * Возвращает false, если элемент прочитали раньше, чем успели пометить
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (o == null)
+            return false;
+        for (Itr it = new Itr(); it.hasNext(); ) {
+            if (o.equals(it.next()) && it.removeLast())
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    private final class Itr implements Iterator<E> {
+
+        private final long end = tail.get();
+        private long pos = head.get();
+        private Object next;
+        private int nextIdx;
+        private int lastIdx;
+        private Object last;
+
+        Itr() {
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (pos < end) {
+                long p = pos++;
+                int idx = (int) p & mask;
+                if (sequences.get(idx) != p + 1)
+                    continue;
+                Object e = SLOTS.getVolatile(buffer, idx);
+                // Ячейку могли прочитать и перезаписать между двумя проверками
+                if (e != null && e != REMOVED && sequences.get(idx) == p + 1) {
+                    next = e;
+                    nextIdx = idx;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            last = next;
+            lastIdx = nextIdx;
+            advance();
+            return (E) last;
+        }
+
+        /**
+         * Ничего не делает, если элемент уже прочитан
+         */
+        @Override
+        public void remove() {
+            removeLast();
+        }
+
+        boolean removeLast() {
+            Preconditions.checkState(last != null);
+            boolean removed = SLOTS.compareAndSet(buffer, lastIdx, last, REMOVED);
+            last = null;
+            return removed;
+        }
+
+    }
+
+    /**
+     * Счетчики писателей и читателей в разных кэш-линиях
+     */
+    @SuppressWarnings({"unused", "serial"})
+    static final class PaddedAtomicLong extends AtomicLong {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+}
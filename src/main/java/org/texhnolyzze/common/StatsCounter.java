@@ -0,0 +1,80 @@
+package org.texhnolyzze.common;
+
+import org.texhnolyzze.common.LRUCache.EvictionCause;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters behind {@link CacheStats}. {@link LongAdder}s spread concurrent updates over cells,
+ * so recording on the hit path does not contend. A disabled counter ignores everything.
+ *
+ * @author Texhnolyze
+ */
+final class StatsCounter {
+
+    static final StatsCounter DISABLED = new StatsCounter(false);
+
+    private final boolean enabled;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loadSuccesses = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+    private final LongAdder[] evictions = new LongAdder[EvictionCause.values().length];
+    private final LongAdder evictedBytes = new LongAdder();
+
+    StatsCounter(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < evictions.length; i++)
+            evictions[i] = new LongAdder();
+    }
+
+    void recordHit() {
+        if (enabled)
+            hits.increment();
+    }
+
+    void recordMiss() {
+        if (enabled)
+            misses.increment();
+    }
+
+    /**
+     * Returns the start time to pass to {@link #recordLoad}.
+     */
+    long startLoad() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    void recordLoad(boolean success, long start) {
+        if (!enabled)
+            return;
+        totalLoadTime.add(System.nanoTime() - start);
+        (success ? loadSuccesses : loadFailures).increment();
+    }
+
+    void recordEviction(EvictionCause cause, long weight) {
+        if (!enabled)
+            return;
+        evictions[cause.ordinal()].increment();
+        evictedBytes.add(weight);
+    }
+
+    CacheStats snapshot() {
+        if (!enabled)
+            return CacheStats.EMPTY;
+        long[] evictionCounts = new long[evictions.length];
+        for (int i = 0; i < evictions.length; i++)
+            evictionCounts[i] = evictions[i].sum();
+        return new CacheStats(
+            hits.sum(),
+            misses.sum(),
+            loadSuccesses.sum(),
+            loadFailures.sum(),
+            totalLoadTime.sum(),
+            evictionCounts,
+            evictedBytes.sum()
+        );
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.texhnolyzze.common;
+
+import org.texhnolyzze.common.ConcurrentLRUCache.Node;
+
+import java.util.function.Predicate;
+
+/**
+ * Hierarchical timer wheel keeping cache nodes by {@link Node#expiresAt}.
+ * Level i consists of 64 buckets 2^SHIFTS[i] nanoseconds wide (about a second, a minute,
+ * an hour and three days), so it spans exactly one bucket of the next level.
+ * Scheduling is O(1); advancing the time visits only the buckets the clock went past,
+ * expiring their nodes or cascading them down to the finer levels.
+ * Not thread-safe, guarded by the stripe lock.
+ */
+final class TimerWheel<K, V> {
+
+    private static final int[] SHIFTS = {30, 36, 42, 48};
+    private static final int BUCKETS = 64;
+    private static final int MASK = BUCKETS - 1;
+
+    private final Node<K, V>[][] wheel;
+    private long nanos;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long now) {
+        this.nanos = now;
+        this.wheel = new Node[SHIFTS.length][BUCKETS];
+        for (Node<K, V>[] level : wheel) {
+            for (int i = 0; i < BUCKETS; i++) {
+                Node<K, V> sentinel = new Node<>(null, null, 0, 0);
+                sentinel.timerPrev = sentinel.timerNext = sentinel;
+                level[i] = sentinel;
+            }
+        }
+    }
+
+    void schedule(Node<K, V> node) {
+        Node<K, V> sentinel = bucketOf(node.expiresAt);
+        node.timerPrev = sentinel.timerPrev;
+        node.timerNext = sentinel;
+        sentinel.timerPrev.timerNext = node;
+        sentinel.timerPrev = node;
+    }
+
+    void reschedule(Node<K, V> node) {
+        deschedule(node);
+        schedule(node);
+    }
+
+    void deschedule(Node<K, V> node) {
+        if (node.timerNext == null)
+            return;
+        node.timerPrev.timerNext = node.timerNext;
+        node.timerNext.timerPrev = node.timerPrev;
+        node.timerPrev = node.timerNext = null;
+    }
+
+    /**
+     * Moves the clock to now. Every node of the passed buckets is offered to expirer,
+     * which returns false if the node is still alive; such nodes are scheduled again
+     * according to their (possibly updated) expiresAt.
+     */
+    void advance(long now, Predicate<Node<K, V>> expirer) {
+        long prev = nanos;
+        nanos = now;
+        for (int i = 0; i < SHIFTS.length; i++) {
+            long prevTicks = prev >>> SHIFTS[i];
+            long delta = (now >>> SHIFTS[i]) - prevTicks;
+            if (delta <= 0)
+                break;
+            expire(wheel[i], prevTicks, delta, expirer);
+        }
+    }
+
+    private void expire(Node<K, V>[] level, long prevTicks, long delta, Predicate<Node<K, V>> expirer) {
+        int start = (int) (prevTicks & MASK);
+        int steps = (int) Math.min(delta + 1, BUCKETS);
+        for (int i = 0; i < steps; i++) {
+            Node<K, V> sentinel = level[(start + i) & MASK];
+            Node<K, V> node = sentinel.timerNext;
+            sentinel.timerPrev = sentinel.timerNext = sentinel;
+            while (node != sentinel) {
+                Node<K, V> next = node.timerNext;
+                node.timerPrev = node.timerNext = null;
+                if (node.expiresAt - nanos > 0 || !expirer.test(node))
+                    schedule(node);
+                node = next;
+            }
+        }
+    }
+
+    private Node<K, V> bucketOf(long time) {
+        long duration = time - nanos;
+        if (duration < 0)
+            time = nanos;
+        int last = SHIFTS.length - 1;
+        for (int i = 0; i < last; i++) {
+            if (duration < 1L << SHIFTS[i + 1])
+                return wheel[i][(int) ((time >>> SHIFTS[i]) & MASK)];
+        }
+        long span = 1L << (SHIFTS[last] + 6);
+        if (duration >= span) {
+            // Farther than the wheel reaches, park in the last bucket to be visited and cascade from there
+            time = nanos + span - (1L << SHIFTS[last]);
+        }
+        return wheel[last][(int) ((time >>> SHIFTS[last]) & MASK)];
+    }
+
+}
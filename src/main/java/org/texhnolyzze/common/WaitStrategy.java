@@ -0,0 +1,88 @@
+package org.texhnolyzze.common;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Способ ожидания потока, которому очередь пока не может отдать элемент или принять новый.<br>
+ * {@link #blocking()} засыпает внутри буфера до сигнала с противоположной стороны, остальные стратегии
+ * опрашивают буфер в цикле и между попытками вызывают {@link #idle(int)}: чем меньше они спят,
+ * тем меньше задержка пробуждения и тем больше процессорного времени уходит на ожидание.
+ */
+public interface WaitStrategy {
+
+    /**
+     * Пауза между неудачными попытками, attempt - номер попытки начиная с 0.
+     * @throws InterruptedException если поток прерван
+     */
+    void idle(int attempt) throws InterruptedException;
+
+    /**
+     * Блокирующее ожидание средствами буфера, противоположная сторона будит ожидающего сигналом. Стратегия по умолчанию.
+     * Вне очереди {@link #idle(int)} спит с удваивающейся паузой не дольше миллисекунды
+     */
+    static WaitStrategy blocking() {
+        return BlockingWaitStrategy.INSTANCE;
+    }
+
+    /**
+     * Активное ожидание без уступки процессора. Минимальная задержка, поток занимает ядро целиком
+     */
+    static WaitStrategy busySpin() {
+        return attempt -> {
+            checkInterrupted();
+            Thread.onSpinWait();
+        };
+    }
+
+    /**
+     * spins попыток активного ожидания, затем {@link Thread#yield()}
+     */
+    static WaitStrategy spinThenYield(int spins) {
+        Preconditions.checkArgument(spins >= 0);
+        return attempt -> {
+            checkInterrupted();
+            if (attempt < spins)
+                Thread.onSpinWait();
+            else
+                Thread.yield();
+        };
+    }
+
+    /**
+     * spins попыток активного ожидания, yields уступок процессора, затем сон, который удваивается
+     * с каждой попыткой начиная с микросекунды и не превышает maxParkNanos
+     */
+    static WaitStrategy spinThenPark(int spins, int yields, long maxParkNanos) {
+        Preconditions.checkArgument(spins >= 0 && yields >= 0 && maxParkNanos > 0);
+        return attempt -> {
+            checkInterrupted();
+            if (attempt < spins) {
+                Thread.onSpinWait();
+            } else if (attempt - spins < yields) {
+                Thread.yield();
+            } else {
+                int shift = Math.min(attempt - spins - yields, 30);
+                LockSupport.parkNanos(Math.min(1_000L << shift, maxParkNanos));
+            }
+        };
+    }
+
+    /**
+     * Сон на parkNanos между попытками
+     */
+    static WaitStrategy timedPark(long parkNanos) {
+        Preconditions.checkArgument(parkNanos > 0);
+        return attempt -> {
+            checkInterrupted();
+            LockSupport.parkNanos(parkNanos);
+        };
+    }
+
+    private static void checkInterrupted() throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+    }
+
+}
@@ -3,10 +3,15 @@ package org.texhnolyzze.common;
 import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 class CancellableBlockingQueueTest {
@@ -149,4 +154,499 @@ class CancellableBlockingQueueTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    void testBackends() throws Exception {
+        for (CancellableBlockingQueue.Backend backend : CancellableBlockingQueue.Backend.values()) {
+            int n = 100_000;
+            CancellableBlockingQueue<Integer> queue = new CancellableBlockingQueue<>(64, 4, 4, backend);
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            AtomicLong sum = new AtomicLong();
+            AtomicInteger count = new AtomicInteger();
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int w = 0; w < 4; w++) {
+                    final int fw = w;
+                    futures.add(pool.submit(() -> {
+                        try {
+                            for (int i = fw; i < n; i += 4)
+                                queue.add(i);
+                        } finally {
+                            queue.writerDone();
+                        }
+                        return null;
+                    }));
+                }
+                for (int r = 0; r < 4; r++) {
+                    futures.add(pool.submit(() -> {
+                        try {
+                            Integer next;
+                            while ((next = queue.poll()) != null) {
+                                sum.addAndGet(next);
+                                count.incrementAndGet();
+                            }
+                        } finally {
+                            queue.readerDone();
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures)
+                    future.get(30, TimeUnit.SECONDS);
+            } finally {
+                pool.shutdownNow();
+            }
+            Assertions.assertThat(count.get()).as(backend.name()).isEqualTo(n);
+            Assertions.assertThat(sum.get()).as(backend.name()).isEqualTo((long) n * (n - 1) / 2);
+        }
+    }
+
+    @Test
+    void testRingBufferIterator() throws Exception {
+        RingBufferBlockingQueue<Integer> queue = new RingBufferBlockingQueue<>(4);
+        queue.add(1);
+        queue.add(2);
+        queue.add(3);
+        Assertions.assertThat(queue.poll()).isEqualTo(1);
+        queue.add(4);
+        queue.add(5);
+        Assertions.assertThat(queue).containsExactly(2, 3, 4, 5);
+        Assertions.assertThat(queue.toString()).isEqualTo("[2, 3, 4, 5]");
+        Assertions.assertThat(queue.contains(4)).isTrue();
+        Assertions.assertThat(queue.containsAll(List.of(2, 5))).isTrue();
+
+        Assertions.assertThat(queue.remove((Object) 3)).isTrue();
+        Assertions.assertThat(queue.remove((Object) 3)).isFalse();
+        Assertions.assertThat(queue.contains(3)).isFalse();
+        Assertions.assertThat(queue.peek()).isEqualTo(2);
+        Assertions.assertThat(queue.take()).isEqualTo(2);
+        // Помеченная ячейка пропускается и освобождает место
+        Assertions.assertThat(queue.take()).isEqualTo(4);
+        Assertions.assertThat(queue.offer(6)).isTrue();
+        Assertions.assertThat(queue.offer(7)).isTrue();
+        Assertions.assertThat(queue.offer(8)).isTrue();
+        Assertions.assertThat(queue.offer(9)).isFalse();
+        Assertions.assertThat(queue).containsExactly(5, 6, 7, 8);
+    }
+
+    @Test
+    void testCapacityOne() throws Exception {
+        RingBufferBlockingQueue<Integer> ring = new RingBufferBlockingQueue<>(1);
+        Assertions.assertThat(ring.capacity()).isEqualTo(2);
+        Assertions.assertThat(ring.offer(1)).isTrue();
+        Assertions.assertThat(ring.offer(2)).isTrue();
+        Assertions.assertThat(ring.offer(3)).isFalse();
+        Assertions.assertThat(ring.poll()).isEqualTo(1);
+        Assertions.assertThat(ring.poll()).isEqualTo(2);
+        Assertions.assertThat(ring.poll()).isNull();
+
+        for (CancellableBlockingQueue.Backend backend : CancellableBlockingQueue.Backend.values()) {
+            CancellableBlockingQueue<Integer> queue = new CancellableBlockingQueue<>(1, 1, 1, backend);
+            ExecutorService writer = Executors.newSingleThreadExecutor();
+            try {
+                Future<?> written = writer.submit(() -> {
+                    try {
+                        for (int i = 0; i < 1_000; i++)
+                            queue.add(i);
+                    } finally {
+                        queue.writerDone();
+                    }
+                    return null;
+                });
+                List<Integer> read = new ArrayList<>();
+                Integer next;
+                while ((next = queue.poll()) != null)
+                    read.add(next);
+                written.get(10, TimeUnit.SECONDS);
+                Assertions.assertThat(read).as(backend.name()).isEqualTo(IntStream.range(0, 1_000).boxed().collect(Collectors.toList()));
+            } finally {
+                writer.shutdownNow();
+            }
+            CancellableBlockingQueue<Integer> aborted = new CancellableBlockingQueue<>(1, 1, 1, backend);
+            aborted.add(1);
+            aborted.abort(new IllegalStateException());
+            Assertions.assertThat(aborted.isAborted()).as(backend.name()).isTrue();
+        }
+    }
+
+    @Test
+    void testBatchOperations() throws Exception {
+        for (CancellableBlockingQueue.Backend backend : CancellableBlockingQueue.Backend.values()) {
+            int n = 100_000;
+            CancellableBlockingQueue<Integer> queue = new CancellableBlockingQueue<>(256, 3, 3, backend);
+            ExecutorService pool = Executors.newFixedThreadPool(6);
+            AtomicLong sum = new AtomicLong();
+            AtomicInteger count = new AtomicInteger();
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int w = 0; w < 3; w++) {
+                    final int fw = w;
+                    futures.add(pool.submit(() -> {
+                        try {
+                            List<Integer> chunk = new ArrayList<>();
+                            for (int i = fw; i < n; i += 3) {
+                                chunk.add(i);
+                                if (chunk.size() == 100) {
+                                    Assertions.assertThat(queue.addAll(chunk)).isTrue();
+                                    chunk.clear();
+                                }
+                            }
+                            queue.addAll(chunk);
+                        } finally {
+                            queue.writerDone();
+                        }
+                        return null;
+                    }));
+                }
+                for (int r = 0; r < 3; r++) {
+                    futures.add(pool.submit(() -> {
+                        List<Integer> batch = new ArrayList<>();
+                        try {
+                            boolean done;
+                            do {
+                                done = queue.drainTo(batch, 64);
+                                Assertions.assertThat(batch.size()).isLessThanOrEqualTo(64);
+                                for (Integer next : batch)
+                                    sum.addAndGet(next);
+                                count.addAndGet(batch.size());
+                                batch.clear();
+                            } while (!done);
+                        } finally {
+                            queue.readerDone();
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures)
+                    future.get(30, TimeUnit.SECONDS);
+            } finally {
+                pool.shutdownNow();
+            }
+            Assertions.assertThat(count.get()).as(backend.name()).isEqualTo(n);
+            Assertions.assertThat(sum.get()).as(backend.name()).isEqualTo((long) n * (n - 1) / 2);
+        }
+        CancellableBlockingQueue<Integer> abandoned = new CancellableBlockingQueue<>(4, 1, 1, CancellableBlockingQueue.Backend.RING_BUFFER);
+        abandoned.readerDone();
+        Assertions.assertThat(abandoned.addAll(Arrays.asList(1, 2, 3))).isFalse();
+    }
+
+    @Test
+    void testWaitStrategies() throws Exception {
+        List<WaitStrategy> strategies = Arrays.asList(
+            WaitStrategy.blocking(),
+            WaitStrategy.busySpin(),
+            WaitStrategy.spinThenYield(100),
+            WaitStrategy.spinThenPark(100, 10, TimeUnit.MILLISECONDS.toNanos(1)),
+            WaitStrategy.timedPark(TimeUnit.MICROSECONDS.toNanos(50))
+        );
+        for (WaitStrategy strategy : strategies) {
+            for (int attempt = 0; attempt < 3; attempt++)
+                strategy.idle(attempt);
+            for (CancellableBlockingQueue.Backend backend : CancellableBlockingQueue.Backend.values()) {
+                CancellableBlockingQueue<Integer> queue = CancellableBlockingQueue.<Integer>builder(2)
+                    .backend(backend)
+                    .waitStrategy(strategy)
+                    .build();
+                Assertions.assertThatThrownBy(() -> queue.poll(1, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+                Assertions.assertThat(queue.offer(1, 1, TimeUnit.MILLISECONDS)).isTrue();
+                Assertions.assertThat(queue.offer(2, 1, TimeUnit.MILLISECONDS)).isTrue();
+                Assertions.assertThat(queue.offer(3, 1, TimeUnit.MILLISECONDS)).isFalse();
+                Assertions.assertThat(queue.poll(1, TimeUnit.MILLISECONDS)).isEqualTo(1);
+                Assertions.assertThat(queue.poll()).isEqualTo(2);
+                ExecutorService writer = Executors.newSingleThreadExecutor();
+                try {
+                    Future<?> written = writer.submit(() -> {
+                        try {
+                            for (int i = 0; i < 1_000; i++)
+                                queue.add(i);
+                        } finally {
+                            queue.writerDone();
+                        }
+                        return null;
+                    });
+                    long sum = 0;
+                    Integer next;
+                    while ((next = queue.poll(10, TimeUnit.SECONDS)) != null)
+                        sum += next;
+                    written.get(10, TimeUnit.SECONDS);
+                    Assertions.assertThat(sum).isEqualTo(999 * 1_000 / 2);
+                    Assertions.assertThat(queue.poll(1, TimeUnit.MILLISECONDS)).isNull();
+                } finally {
+                    writer.shutdownNow();
+                }
+            }
+        }
+    }
+
+    @Test
+    void testAbort() throws Exception {
+        for (CancellableBlockingQueue.Backend backend : CancellableBlockingQueue.Backend.values()) {
+            CancellableBlockingQueue<Integer> empty = new CancellableBlockingQueue<>(4, 2, 2, backend);
+            CancellableBlockingQueue<Integer> full = new CancellableBlockingQueue<>(4, 2, 2, backend);
+            for (int i = 0; i < 4; i++)
+                full.add(i);
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<?>> blocked = new ArrayList<>();
+                for (int i = 0; i < 2; i++) {
+                    blocked.add(pool.submit(() -> empty.poll()));
+                    blocked.add(pool.submit(() -> {
+                        full.add(42);
+                        return null;
+                    }));
+                }
+                Thread.sleep(50);
+                IllegalArgumentException cause = new IllegalArgumentException("writer crashed");
+                empty.abort(cause);
+                full.abort(cause);
+                for (Future<?> future : blocked) {
+                    Assertions.assertThatThrownBy(() -> future.get(5, TimeUnit.SECONDS))
+                        .isInstanceOf(ExecutionException.class)
+                        .getCause()
+                        .isInstanceOf(CancellableBlockingQueue.AbortedException.class)
+                        .hasCause(cause);
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            Assertions.assertThatThrownBy(empty::poll).hasCause(new IllegalArgumentException("writer crashed"));
+            Assertions.assertThatThrownBy(() -> full.add(1)).isInstanceOf(CancellableBlockingQueue.AbortedException.class);
+            Assertions.assertThat(full.isAborted()).isTrue();
+            full.writerDone();
+            full.readerDone();
+        }
+    }
+
+    @Test
+    void testAbortStopsBlockedAddAll() throws Exception {
+        for (CancellableBlockingQueue.Backend backend : CancellableBlockingQueue.Backend.values()) {
+            CancellableBlockingQueue<Integer> queue = new CancellableBlockingQueue<>(1, 1, 1, backend);
+            List<Integer> elems = IntStream.rangeClosed(0, queue.capacity()).boxed().collect(Collectors.toList());
+            ExecutorService writer = Executors.newSingleThreadExecutor();
+            try {
+                Future<Boolean> added = writer.submit(() -> queue.addAll(elems));
+                Thread.sleep(50);
+                IllegalStateException cause = new IllegalStateException("reader crashed");
+                queue.abort(cause);
+                Assertions.assertThatThrownBy(() -> added.get(5, TimeUnit.SECONDS))
+                    .as(backend.name())
+                    .isInstanceOf(ExecutionException.class)
+                    .getCause()
+                    .isInstanceOf(CancellableBlockingQueue.AbortedException.class)
+                    .hasCause(cause);
+            } finally {
+                writer.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    void testAbortWakesAllWriters() throws Exception {
+        for (CancellableBlockingQueue.Backend backend : CancellableBlockingQueue.Backend.values()) {
+            CancellableBlockingQueue<Integer> queue = new CancellableBlockingQueue<>(4, 1, 4, backend);
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<?>> writers = new ArrayList<>();
+                for (int w = 0; w < 4; w++) {
+                    writers.add(pool.submit(() -> {
+                        for (int i = 0; ; i++)
+                            queue.add(i);
+                    }));
+                }
+                Thread.sleep(50);
+                IllegalStateException cause = new IllegalStateException("reader crashed");
+                queue.abort(cause);
+                for (Future<?> future : writers) {
+                    Assertions.assertThatThrownBy(() -> future.get(5, TimeUnit.SECONDS))
+                        .as(backend.name())
+                        .isInstanceOf(ExecutionException.class)
+                        .getCause()
+                        .isInstanceOf(CancellableBlockingQueue.AbortedException.class)
+                        .hasCause(cause);
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    void testFlowAdapters() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            for (CancellableBlockingQueue.Backend backend : CancellableBlockingQueue.Backend.values()) {
+                int n = 100_000;
+                CancellableBlockingQueue<Integer> queue = new CancellableBlockingQueue<>(64, 1, 1, backend);
+                CompletableFuture<Long> sum = new CompletableFuture<>();
+                try (SubmissionPublisher<Integer> source = new SubmissionPublisher<>(pool, 16)) {
+                    source.subscribe(queue.asSubscriber());
+                    queue.asPublisher(pool).subscribe(new Flow.Subscriber<>() {
+                        Flow.Subscription subscription;
+                        long acc;
+                        int received;
+
+                        @Override
+                        public void onSubscribe(Flow.Subscription subscription) {
+                            this.subscription = subscription;
+                            subscription.request(10);
+                        }
+
+                        @Override
+                        public void onNext(Integer item) {
+                            acc += item;
+                            if (++received % 10 == 0)
+                                subscription.request(10);
+                        }
+
+                        @Override public void onError(Throwable throwable) {sum.completeExceptionally(throwable);}
+                        @Override public void onComplete() {sum.complete(acc);}
+                    });
+                    for (int i = 0; i < n; i++)
+                        source.submit(i);
+                }
+                Assertions.assertThat(sum.get(30, TimeUnit.SECONDS)).as(backend.name()).isEqualTo((long) n * (n - 1) / 2);
+            }
+
+            CancellableBlockingQueue<Integer> queue = new CancellableBlockingQueue<>(16);
+            for (int i = 0; i < 10; i++)
+                queue.add(i);
+            CompletableFuture<Integer> received = new CompletableFuture<>();
+            queue.asPublisher(pool).subscribe(new Flow.Subscriber<>() {
+                Flow.Subscription subscription;
+                int count;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(Integer item) {
+                    if (++count == 5) {
+                        subscription.cancel();
+                        received.complete(count);
+                    }
+                }
+
+                @Override public void onError(Throwable throwable) {received.completeExceptionally(throwable);}
+                @Override public void onComplete() {received.completeExceptionally(new AssertionError("completed"));}
+            });
+            Assertions.assertThat(received.get(5, TimeUnit.SECONDS)).isEqualTo(5);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!queue.isAborted() && System.nanoTime() < deadline)
+                Thread.sleep(1);
+            Assertions.assertThat(queue.isAborted()).isTrue();
+            Assertions.assertThatThrownBy(() -> queue.add(42)).hasCauseInstanceOf(CancellationException.class);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void testDynamicRegistration() throws Exception {
+        int writers = 8;
+        int n = 10_000;
+        CancellableBlockingQueue<Integer> queue = new CancellableBlockingQueue<>(16, 1, 1, CancellableBlockingQueue.Backend.RING_BUFFER);
+        ExecutorService pool = Executors.newFixedThreadPool(writers + 4);
+        AtomicLong sum = new AtomicLong();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int r = 0; r < 4; r++) {
+                // Первый reader передан в конструктор, остальные присоединяются позже
+                CancellableBlockingQueue<Integer>.ReaderHandle handle = r == 0 ? null : queue.registerReader();
+                futures.add(pool.submit(() -> {
+                    Integer next;
+                    try {
+                        while ((next = queue.poll()) != null)
+                            sum.addAndGet(next);
+                    } finally {
+                        if (handle != null)
+                            handle.close();
+                        else
+                            queue.readerDone();
+                    }
+                    return null;
+                }));
+            }
+            // Запускающий держит переданную в конструктор регистрацию writer-а, пока добавляет новых
+            for (int w = 0; w < writers; w++) {
+                final int fw = w;
+                CancellableBlockingQueue<Integer>.WriterHandle handle = queue.registerWriter();
+                futures.add(pool.submit(() -> {
+                    try (handle) {
+                        for (int i = fw; i < n; i += writers)
+                            queue.add(i);
+                    }
+                    handle.close();
+                    return null;
+                }));
+            }
+            queue.writerDone();
+            for (Future<?> future : futures)
+                future.get(30, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+        Assertions.assertThat(sum.get()).isEqualTo((long) n * (n - 1) / 2);
+        Assertions.assertThatThrownBy(queue::registerWriter).isInstanceOf(IllegalStateException.class).hasMessage("All writers done");
+        Assertions.assertThatThrownBy(queue::registerReader).isInstanceOf(IllegalStateException.class).hasMessage("All readers done");
+    }
+
+    @Test
+    void testStats() throws Exception {
+        for (CancellableBlockingQueue.Backend backend : CancellableBlockingQueue.Backend.values()) {
+            int n = 20_000;
+            CancellableBlockingQueue<Integer> queue = CancellableBlockingQueue.<Integer>builder(8)
+                .backend(backend)
+                .recordStats()
+                .build();
+            ExecutorService writer = Executors.newSingleThreadExecutor();
+            try {
+                // Медленный reader: writer большую часть времени ждет места в заполненной очереди
+                Future<?> written = writer.submit(() -> {
+                    try {
+                        for (int i = 0; i < n; i++)
+                            queue.add(i);
+                    } finally {
+                        queue.writerDone();
+                    }
+                    return null;
+                });
+                List<Integer> batch = new ArrayList<>();
+                int read = 0;
+                Integer next;
+                while ((next = queue.poll()) != null) {
+                    read++;
+                    if (read % 1_000 == 0) {
+                        Thread.sleep(1);
+                        boolean done = queue.drainTo(batch, 4);
+                        read += batch.size();
+                        batch.clear();
+                        if (done)
+                            break;
+                    }
+                }
+                written.get(10, TimeUnit.SECONDS);
+                QueueStats stats = queue.stats();
+                Assertions.assertThat(read).isEqualTo(n);
+                Assertions.assertThat(stats.enqueuedCount()).as(backend.name()).isEqualTo(n);
+                Assertions.assertThat(stats.dequeuedCount()).as(backend.name()).isEqualTo(n);
+                Assertions.assertThat(stats.writerBlockedNanos()).as(backend.name()).isGreaterThan(TimeUnit.MILLISECONDS.toNanos(10));
+                Assertions.assertThat(stats.capacity()).isEqualTo(8);
+                Assertions.assertThat(stats.occupancyHistogram()).hasSize(QueueStats.OCCUPANCY_BUCKETS);
+                Assertions.assertThat(stats.occupancySamples()).isPositive();
+                Assertions.assertThat(stats.averageOccupancy()).isBetween(0.0, 1.0);
+            } finally {
+                writer.shutdownNow();
+            }
+        }
+        CancellableBlockingQueue<Integer> plain = new CancellableBlockingQueue<>(4);
+        plain.add(1);
+        Assertions.assertThat(plain.stats().enqueuedCount()).isZero();
+
+        CancellableBlockingQueue<Integer> empty = CancellableBlockingQueue.<Integer>builder(4).recordStats().build();
+        Assertions.assertThatThrownBy(() -> empty.poll(20, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+        Assertions.assertThat(empty.stats().readerBlockedNanos()).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+}
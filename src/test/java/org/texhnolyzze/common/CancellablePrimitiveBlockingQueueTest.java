@@ -0,0 +1,157 @@
+package org.texhnolyzze.common;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class CancellablePrimitiveBlockingQueueTest {
+
+    @Test
+    void testLongQueue() throws Exception {
+        int n = 1_000_000;
+        CancellableLongBlockingQueue queue = new CancellableLongBlockingQueue(100, 4, 4);
+        Assertions.assertThat(queue.capacity()).isEqualTo(128);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        AtomicLong sum = new AtomicLong();
+        AtomicLong count = new AtomicLong();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < 4; w++) {
+                final int fw = w;
+                futures.add(pool.submit(() -> {
+                    try {
+                        long[] chunk = new long[37];
+                        int size = 0;
+                        for (int i = fw; i < n; i += 4) {
+                            // Отрицательные значения и -1 не должны путаться с концом данных
+                            long value = -i;
+                            if (fw % 2 == 0) {
+                                queue.add(value);
+                            } else {
+                                chunk[size++] = value;
+                                if (size == chunk.length) {
+                                    Assertions.assertThat(queue.addAll(chunk, 0, size)).isTrue();
+                                    size = 0;
+                                }
+                            }
+                        }
+                        queue.addAll(chunk, 0, size);
+                    } finally {
+                        queue.writerDone();
+                    }
+                    return null;
+                }));
+            }
+            for (int r = 0; r < 4; r++) {
+                futures.add(pool.submit(() -> {
+                    long[] batch = new long[64];
+                    int read;
+                    try {
+                        while ((read = queue.drainTo(batch, 1, 63)) >= 0) {
+                            Assertions.assertThat(read).isBetween(1, 63);
+                            for (int i = 1; i <= read; i++)
+                                sum.addAndGet(batch[i]);
+                            count.addAndGet(read);
+                        }
+                    } finally {
+                        queue.readerDone();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get(30, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+        Assertions.assertThat(count.get()).isEqualTo(n);
+        Assertions.assertThat(sum.get()).isEqualTo(-(long) n * (n - 1) / 2);
+    }
+
+    @Test
+    void testCapacityOne() throws Exception {
+        CancellableLongBlockingQueue queue = new CancellableLongBlockingQueue(1);
+        Assertions.assertThat(queue.capacity()).isEqualTo(2);
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> written = writer.submit(() -> {
+                try {
+                    for (long i = 0; i < 1_000; i++)
+                        queue.add(i);
+                } finally {
+                    queue.writerDone();
+                }
+                return null;
+            });
+            long[] batch = new long[4];
+            long expected = 0;
+            int read;
+            while ((read = queue.drainTo(batch, 0, batch.length)) >= 0) {
+                for (int i = 0; i < read; i++)
+                    Assertions.assertThat(batch[i]).isEqualTo(expected++);
+            }
+            Assertions.assertThat(expected).isEqualTo(1_000);
+            written.get(10, TimeUnit.SECONDS);
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    @Test
+    void testIntQueueEndOfStreamAndAbort() throws Exception {
+        CancellableIntBlockingQueue queue = new CancellableIntBlockingQueue(4);
+        queue.addAll(new int[] {-1, 0, 1}, 0, 3);
+        queue.writerDone();
+        Assertions.assertThatThrownBy(() -> queue.add(2)).isInstanceOf(IllegalStateException.class);
+        int[] batch = new int[8];
+        Assertions.assertThat(queue.drainTo(batch, 0, 2)).isEqualTo(2);
+        Assertions.assertThat(queue.drainTo(batch, 2, 6)).isEqualTo(1);
+        Assertions.assertThat(batch).startsWith(-1, 0, 1);
+        Assertions.assertThat(queue.drainTo(batch, 0, 8)).isEqualTo(-1);
+        Assertions.assertThat(queue.drainTo(batch, 0, 8)).isEqualTo(-1);
+        queue.readerDone();
+
+        CancellableIntBlockingQueue abandoned = new CancellableIntBlockingQueue(2);
+        abandoned.readerDone();
+        Assertions.assertThat(abandoned.addAll(new int[] {1, 2, 3}, 0, 3)).isFalse();
+
+        CancellableIntBlockingQueue empty = new CancellableIntBlockingQueue(4, 2, 1);
+        CancellableIntBlockingQueue full = new CancellableIntBlockingQueue(2, 1, 2);
+        full.addAll(new int[] {1, 2}, 0, 2);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> blocked = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                blocked.add(pool.submit(() -> empty.drainTo(new int[1], 0, 1)));
+                blocked.add(pool.submit(() -> {
+                    full.add(42);
+                    return null;
+                }));
+            }
+            Thread.sleep(50);
+            IllegalArgumentException cause = new IllegalArgumentException("writer crashed");
+            empty.abort(cause);
+            full.abort(cause);
+            for (Future<?> future : blocked) {
+                Assertions.assertThatThrownBy(() -> future.get(5, TimeUnit.SECONDS))
+                    .isInstanceOf(ExecutionException.class)
+                    .getCause()
+                    .isInstanceOf(CancellableBlockingQueue.AbortedException.class)
+                    .hasCause(cause);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        Assertions.assertThat(full.isAborted()).isTrue();
+        Assertions.assertThatThrownBy(() -> full.addAll(new int[1], 0, 1)).isInstanceOf(CancellableBlockingQueue.AbortedException.class);
+    }
+
+}
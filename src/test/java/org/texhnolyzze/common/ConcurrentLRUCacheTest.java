@@ -0,0 +1,357 @@
+package org.texhnolyzze.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ConcurrentLRUCacheTest {
+
+    static final class Blob implements LRUCache.Sizeable {
+
+        final int key;
+        final long size;
+
+        Blob(int key, long size) {
+            this.key = key;
+            this.size = size;
+        }
+
+        @Override
+        public long getSizeBytes() {
+            return size;
+        }
+
+    }
+
+    private static List<Integer> keys(LRUCache<Integer, Blob> cache) {
+        List<Integer> keys = new ArrayList<>();
+        for (Map.Entry<Integer, Blob> e : cache.fromLeastToMostRecentlyUsed())
+            keys.add(e.getKey());
+        return keys;
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsed() {
+        LRUCache<Integer, Blob> cache = LRUCache.concurrentImpl(30, 1);
+        for (int i = 0; i < 3; i++)
+            cache.getIfPresentOrLoad(i, k -> new Blob(k, 10));
+        assertThat(cache.getIfPresent(0)).isNotNull();
+        cache.getIfPresentOrLoad(3, k -> new Blob(k, 10));
+        assertThat(keys(cache)).containsExactly(2, 0, 3);
+        assertThat(cache.getSizeBytes()).isEqualTo(30);
+        cache.setMaxCapacity(15);
+        assertThat(keys(cache)).containsExactly(3);
+        assertThat(cache.getSizeBytes()).isEqualTo(10);
+        assertThatThrownBy(() -> cache.getIfPresentOrLoad(4, k -> new Blob(k, 16))).isInstanceOf(RuntimeException.class);
+    }
+
+    @Test
+    void testGetAllOrLoad() {
+        LRUCache<Integer, Blob> cache = LRUCache.concurrentImpl(40, 1);
+        cache.getIfPresentOrLoad(0, k -> new Blob(k, 10));
+        List<Set<Integer>> batches = new ArrayList<>();
+        Map<Integer, Blob> all = cache.getAllOrLoad(Arrays.asList(3, 0, 1, 2), keys -> {
+            batches.add(new HashSet<>(keys));
+            Map<Integer, Blob> loaded = new HashMap<>();
+            for (Integer key : keys) {
+                if (key != 2)
+                    loaded.put(key, new Blob(key, 10));
+            }
+            return loaded;
+        });
+        assertThat(batches).containsExactly(new HashSet<>(Arrays.asList(3, 1, 2)));
+        assertThat(all.keySet()).containsExactly(3, 0, 1);
+        assertThat(cache.getAllIfPresent(Arrays.asList(1, 2, 3)).keySet()).containsExactly(1, 3);
+        Map<Integer, Blob> more = cache.getAllOrLoad(Arrays.asList(4, 5), keys -> {
+            Map<Integer, Blob> loaded = new HashMap<>();
+            for (Integer key : keys)
+                loaded.put(key, new Blob(key, 10));
+            return loaded;
+        });
+        assertThat(more.keySet()).containsExactly(4, 5);
+        assertThat(cache.getSizeBytes()).isEqualTo(40);
+        // Reads of 1 and 3 go through the lossy read buffer, which is replayed in slot order, not in the order of reads,
+        // so only their place before the entries loaded afterwards is certain
+        List<Integer> order = keys(cache);
+        assertThat(order).hasSize(4);
+        assertThat(order.subList(0, 2)).containsExactlyInAnyOrder(1, 3);
+        assertThat(order.subList(2, 4)).containsExactlyInAnyOrder(4, 5);
+    }
+
+    @Test
+    void testConcurrentAccess() throws Exception {
+        LRUCache<Integer, Blob> cache = LRUCache.concurrentImpl(10_000, 8);
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 16; t++) {
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < 50_000; i++) {
+                    int key = ThreadLocalRandom.current().nextInt(2_000);
+                    Blob blob = cache.getIfPresentOrLoad(key, k -> new Blob(k, 1 + k % 10));
+                    assertThat(blob.key).isEqualTo(key);
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            pool.shutdownNow();
+        }
+        long size = 0;
+        for (Map.Entry<Integer, Blob> e : cache.fromLeastToMostRecentlyUsed())
+            size += e.getValue().getSizeBytes();
+        assertThat(size).isEqualTo(cache.getSizeBytes());
+        assertThat(size).isLessThanOrEqualTo(cache.getMaxCapacityBytes());
+    }
+
+    @Test
+    void testSingleFlightLoading() throws Exception {
+        ConcurrentLRUCache<Integer, Blob> cache = LRUCache.<Integer, Blob>builder(1_000).singleFlightLoading().build();
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        LRUCache.ByKeySizeableLoader<Integer, Blob> loader = k -> {
+            loads.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return new Blob(k, 10);
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        ExecutorService asyncPool = Executors.newSingleThreadExecutor();
+        try {
+            List<Future<Blob>> sync = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+                sync.add(pool.submit(() -> cache.getIfPresentOrLoad(42, loader)));
+            CompletableFuture<Blob> async = cache.getIfPresentOrLoadAsync(42, loader, asyncPool);
+            Thread.sleep(100);
+            release.countDown();
+            Blob loaded = async.get();
+            for (Future<Blob> future : sync)
+                assertThat(future.get()).isSameAs(loaded);
+        } finally {
+            pool.shutdownNow();
+            asyncPool.shutdownNow();
+        }
+        assertThat(loads.get()).isEqualTo(1);
+        assertThatThrownBy(() -> cache.getIfPresentOrLoad(7, k -> {
+            throw new IllegalStateException("boom");
+        })).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void testTinyLfuResistsScans() {
+        List<Integer> trace = new ArrayList<>();
+        int cold = 1_000;
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 20; i++)
+                for (int hot = 0; hot < 100; hot++)
+                    trace.add(hot);
+            for (int i = 0; i < 500; i++)
+                trace.add(cold++);
+        }
+        LRUCacheSimulator.Result lru = LRUCacheSimulator.simulate(trace, k -> 1, 200, EvictionPolicy::lru);
+        LRUCacheSimulator.Result tinyLfu = LRUCacheSimulator.simulate(trace, k -> 1, 200, EvictionPolicy::tinyLfu);
+        assertThat(tinyLfu.hitRate()).isGreaterThan(lru.hitRate());
+        assertThat(tinyLfu.hitRate()).isGreaterThan(0.75);
+
+        LRUCache<Integer, Blob> cache = LRUCache.<Integer, Blob>builder(100).concurrencyLevel(1).evictionPolicy(EvictionPolicy::tinyLfu).build();
+        for (int i = 0; i < 1_000; i++) {
+            cache.getIfPresentOrLoad(i % 10, k -> new Blob(k, 5));
+            cache.getIfPresentOrLoad(1_000 + i, k -> new Blob(k, 5));
+        }
+        for (int i = 0; i < 10; i++)
+            assertThat(cache.getIfPresent(i)).isNotNull();
+        assertThat(cache.getSizeBytes()).isLessThanOrEqualTo(100);
+    }
+
+    @Test
+    void testExpiry() {
+        AtomicLong time = new AtomicLong();
+        ConcurrentLRUCache<Integer, Blob> cache = LRUCache.<Integer, Blob>builder(1_000)
+            .concurrencyLevel(1)
+            .expireAfterWrite(10, TimeUnit.SECONDS)
+            .expireAfterAccess(3, TimeUnit.SECONDS)
+            .ticker(time::get)
+            .build();
+        for (int i = 0; i < 5; i++)
+            cache.getIfPresentOrLoad(i, k -> new Blob(k, 10));
+        for (int sec = 2; sec <= 8; sec += 2) {
+            time.set(TimeUnit.SECONDS.toNanos(sec));
+            assertThat(cache.getIfPresent(0)).isNotNull();
+        }
+        assertThat(cache.getIfPresent(1)).isNull();
+        cache.getIfPresentOrLoad(5, k -> new Blob(k, 10));
+        assertThat(keys(cache)).containsExactly(0, 5);
+        assertThat(cache.getSizeBytes()).isEqualTo(20);
+        time.set(TimeUnit.SECONDS.toNanos(10));
+        assertThat(cache.getIfPresent(0)).isNull();
+        assertThat(cache.getIfPresentOrLoad(0, k -> new Blob(k, 20)).size).isEqualTo(20);
+
+        ConcurrentLRUCache<Integer, Blob> longLived = LRUCache.<Integer, Blob>builder(1_000)
+            .expireAfterWrite(2, TimeUnit.DAYS)
+            .ticker(time::get)
+            .build();
+        longLived.getIfPresentOrLoad(1, k -> new Blob(k, 10));
+        time.addAndGet(TimeUnit.DAYS.toNanos(1));
+        longLived.setMaxCapacity(1_000);
+        assertThat(longLived.getSizeBytes()).isEqualTo(10);
+        time.addAndGet(TimeUnit.DAYS.toNanos(1) + 1);
+        longLived.setMaxCapacity(1_000);
+        assertThat(longLived.getSizeBytes()).isZero();
+
+        // Reads alone reclaim expired entries
+        ConcurrentLRUCache<Integer, Blob> readOnly = LRUCache.<Integer, Blob>builder(1_000)
+            .concurrencyLevel(1)
+            .expireAfterWrite(10, TimeUnit.SECONDS)
+            .ticker(time::get)
+            .build();
+        time.set(0);
+        for (int i = 0; i < 10; i++)
+            readOnly.getIfPresentOrLoad(i, k -> new Blob(k, 10));
+        time.set(TimeUnit.SECONDS.toNanos(5));
+        readOnly.getIfPresentOrLoad(100, k -> new Blob(k, 10));
+        time.set(TimeUnit.SECONDS.toNanos(10));
+        for (int i = 0; i < 1_000; i++)
+            assertThat(readOnly.getIfPresent(100)).isNotNull();
+        assertThat(readOnly.getSizeBytes()).isEqualTo(10);
+    }
+
+    @Test
+    void testRefreshAfterWrite() {
+        AtomicLong time = new AtomicLong();
+        ConcurrentLRUCache<Integer, Blob> cache = LRUCache.<Integer, Blob>builder(1_000)
+            .refreshAfterWrite(1, TimeUnit.SECONDS)
+            .executor(Runnable::run)
+            .ticker(time::get)
+            .build();
+        Blob first = cache.getIfPresentOrLoad(1, k -> new Blob(k, 10));
+        assertThat(cache.getIfPresentOrLoad(1, k -> new Blob(k, 20))).isSameAs(first);
+        time.set(TimeUnit.SECONDS.toNanos(2));
+        assertThat(cache.getIfPresentOrLoad(1, k -> {
+            throw new IllegalStateException("reload failed");
+        })).isSameAs(first);
+        assertThat(cache.getIfPresentOrLoad(1, k -> new Blob(k, 20))).isSameAs(first);
+        assertThat(cache.getIfPresent(1).size).isEqualTo(20);
+        assertThat(cache.getSizeBytes()).isEqualTo(20);
+
+        // An Error thrown by the reload must not leave the entry marked as refreshing forever
+        ConcurrentLRUCache<Integer, Blob> swallowing = LRUCache.<Integer, Blob>builder(1_000)
+            .refreshAfterWrite(1, TimeUnit.SECONDS)
+            .executor(r -> {
+                try {
+                    r.run();
+                } catch (AssertionError ignored) {
+                }
+            })
+            .ticker(time::get)
+            .build();
+        Blob old = swallowing.getIfPresentOrLoad(1, k -> new Blob(k, 10));
+        time.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertThat(swallowing.getIfPresentOrLoad(1, k -> {
+            throw new AssertionError("reload failed");
+        })).isSameAs(old);
+        swallowing.getIfPresentOrLoad(1, k -> new Blob(k, 30));
+        assertThat(swallowing.getIfPresent(1).size).isEqualTo(30);
+    }
+
+    @Test
+    void testStatsAndEvictionListener() {
+        AtomicLong time = new AtomicLong();
+        List<String> evictions = new ArrayList<>();
+        List<Runnable> tasks = new ArrayList<>();
+        ConcurrentLRUCache<Integer, Blob> cache = LRUCache.<Integer, Blob>builder(30)
+            .concurrencyLevel(1)
+            .expireAfterWrite(10, TimeUnit.SECONDS)
+            .ticker(time::get)
+            .recordStats()
+            .evictionListener((key, blob, cause) -> evictions.add(key + ":" + cause), tasks::add)
+            .build();
+        for (int i = 0; i < 4; i++)
+            cache.getIfPresentOrLoad(i, k -> new Blob(k, 10));
+        assertThat(cache.getIfPresent(3)).isNotNull();
+        assertThat(cache.getIfPresent(0)).isNull();
+        assertThatThrownBy(() -> cache.getIfPresentOrLoad(4, k -> {
+            throw new IllegalStateException();
+        })).isInstanceOf(IllegalStateException.class);
+        time.set(TimeUnit.SECONDS.toNanos(10));
+        cache.setMaxCapacity(30);
+        assertThat(evictions).isEmpty();
+        tasks.forEach(Runnable::run);
+        assertThat(evictions).containsExactlyInAnyOrder("0:SIZE", "1:EXPIRED", "2:EXPIRED", "3:EXPIRED");
+        CacheStats stats = cache.stats();
+        assertThat(stats.hitCount()).isEqualTo(1);
+        assertThat(stats.missCount()).isEqualTo(6);
+        assertThat(stats.loadSuccessCount()).isEqualTo(4);
+        assertThat(stats.loadFailureCount()).isEqualTo(1);
+        assertThat(stats.evictionCount(LRUCache.EvictionCause.SIZE)).isEqualTo(1);
+        assertThat(stats.evictionCount(LRUCache.EvictionCause.EXPIRED)).isEqualTo(3);
+        assertThat(stats.evictedBytes()).isEqualTo(40);
+        assertThat(LRUCache.<Integer, Blob>concurrentImpl(10).stats().requestCount()).isZero();
+    }
+
+    @Test
+    void testWeighsOnceAtAdmission() {
+        AtomicInteger weighs = new AtomicInteger();
+        LRUCache.Weigher<Integer, Blob> weigher = (key, blob) -> {
+            weighs.incrementAndGet();
+            return blob.size;
+        };
+        List<LRUCache<Integer, Blob>> caches = Arrays.asList(
+            LRUCache.defaultImpl(100, weigher),
+            LRUCache.<Integer, Blob>builder(100).concurrencyLevel(1).weigher(weigher).build()
+        );
+        for (LRUCache<Integer, Blob> cache : caches) {
+            weighs.set(0);
+            for (int i = 0; i < 10; i++)
+                cache.getIfPresentOrLoad(i, k -> new Blob(k, 10));
+            for (int i = 0; i < 10; i++)
+                cache.getIfPresent(i);
+            assertThat(weighs).hasValue(10);
+            cache.setMaxCapacity(35);
+            assertThat(cache.getSizeBytes()).isEqualTo(30);
+            assertThat(keys(cache)).hasSize(3);
+            assertThat(weighs).hasValue(10);
+        }
+    }
+
+    @Test
+    void testStripesBorrowCapacity() {
+        LRUCache<Integer, Blob> cache = LRUCache.concurrentImpl(1_000, 64);
+        for (int i = 0; i < 50; i++)
+            cache.getIfPresentOrLoad(i, k -> new Blob(k, 10));
+        assertThat(cache.getSizeBytes()).isEqualTo(500);
+        // Far above the share of one stripe, but fits the cache once others give space back
+        assertThat(cache.getIfPresentOrLoad(100, k -> new Blob(k, 900))).isNotNull();
+        assertThat(cache.getIfPresent(100)).isNotNull();
+        assertThat(cache.getSizeBytes()).isBetween(900L, 1_000L);
+        for (int i = 200; i < 400; i++)
+            cache.getIfPresentOrLoad(i, k -> new Blob(k, 10));
+        assertThat(cache.getSizeBytes()).isLessThanOrEqualTo(1_000L);
+        cache.setMaxCapacity(100);
+        assertThat(cache.getSizeBytes()).isLessThanOrEqualTo(100L);
+        assertThatThrownBy(() -> cache.getIfPresentOrLoad(500, k -> new Blob(k, 101)))
+            .hasMessage("Insufficient cache space.");
+    }
+
+}
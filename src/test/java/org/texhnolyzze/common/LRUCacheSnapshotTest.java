@@ -0,0 +1,100 @@
+package org.texhnolyzze.common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.texhnolyzze.common.OffHeapLRUCacheTest.Bytes;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.texhnolyzze.common.MappedDiskTierTest.INT_CODEC;
+
+class LRUCacheSnapshotTest {
+
+    @TempDir
+    Path dir;
+
+    private static List<Integer> keys(LRUCache<Integer, Bytes> cache) {
+        List<Integer> keys = new ArrayList<>();
+        for (Map.Entry<Integer, Bytes> e : cache.fromLeastToMostRecentlyUsed())
+            keys.add(e.getKey());
+        return keys;
+    }
+
+    @Test
+    void testRestoresKeysWithLoader() throws IOException, InterruptedException {
+        LRUCache<Integer, Bytes> cache = LRUCache.defaultImpl(1_000);
+        for (int i = 0; i < 10; i++)
+            cache.getIfPresentOrLoad(i, k -> new Bytes(k, 100));
+        cache.getIfPresent(3);
+        Path file = dir.resolve("keys.snapshot");
+        LRUCacheSnapshot.write(cache, file, INT_CODEC);
+
+        LRUCache<Integer, Bytes> restored = LRUCache.concurrentImpl(1_000, 1);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            int count = LRUCacheSnapshot.restore(restored, file, INT_CODEC, k -> k == 5 ? null : new Bytes(k, 100), pool, 4);
+            assertThat(count).isEqualTo(9);
+        } finally {
+            pool.shutdownNow();
+        }
+        assertThat(keys(restored)).containsExactlyInAnyOrder(0, 1, 2, 4, 6, 7, 8, 9, 3);
+
+        LRUCache<Integer, Bytes> smaller = LRUCache.defaultImpl(300);
+        assertThat(LRUCacheSnapshot.restore(smaller, file, INT_CODEC, k -> new Bytes(k, 100), Runnable::run, 1)).isEqualTo(3);
+        assertThat(keys(smaller)).containsExactly(8, 9, 3);
+    }
+
+    @Test
+    void testRestoresValues() throws IOException, InterruptedException {
+        LRUCache<Integer, Bytes> cache = LRUCache.defaultImpl(200_000);
+        for (int i = 0; i < 100; i++)
+            cache.getIfPresentOrLoad(i, k -> new Bytes(k, 1_000 + k));
+        Path file = dir.resolve("values.snapshot");
+        LRUCacheSnapshot.write(cache, file, INT_CODEC, OffHeapLRUCacheTest.CODEC);
+        LRUCache<Integer, Bytes> restored = LRUCache.defaultImpl(200_000);
+        assertThat(LRUCacheSnapshot.restore(restored, file, INT_CODEC, OffHeapLRUCacheTest.CODEC)).isEqualTo(100);
+        assertThat(keys(restored)).isEqualTo(keys(cache));
+        assertThat(restored.getIfPresent(42).data).isEqualTo(new Bytes(42, 1_042).data);
+        assertThat(restored.getSizeBytes()).isEqualTo(cache.getSizeBytes());
+    }
+
+    @Test
+    void testParallelRestoreKeepsHottest() throws IOException, InterruptedException {
+        LRUCache<Integer, Bytes> cache = LRUCache.defaultImpl(100_000);
+        for (int i = 0; i < 100; i++)
+            cache.getIfPresentOrLoad(i, k -> new Bytes(k, 100));
+        Path file = dir.resolve("hot.snapshot");
+        LRUCacheSnapshot.write(cache, file, INT_CODEC);
+
+        // The hotter the key, the slower its load: colder loads in flight finish first and overshoot the capacity
+        LRUCache.ByKeySizeableLoader<Integer, Bytes> slowHot = k -> {
+            try {
+                Thread.sleep(Math.max(0, k - 80) * 5L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new Bytes(k, 100);
+        };
+        LRUCache<Integer, Bytes> restored = LRUCache.concurrentImpl(1_000, 1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            assertThat(LRUCacheSnapshot.restore(restored, file, INT_CODEC, slowHot, pool, 8)).isEqualTo(10);
+            assertThat(keys(restored)).containsExactlyInAnyOrder(90, 91, 92, 93, 94, 95, 96, 97, 98, 99);
+
+            // Restore weighs with the weigher of the cache, not with the size of the value
+            LRUCache<Integer, Bytes> weighed = LRUCache.defaultImpl(1_000, (k, v) -> 2 * v.getSizeBytes());
+            assertThat(LRUCacheSnapshot.restore(weighed, file, INT_CODEC, slowHot, pool, 8)).isEqualTo(5);
+            assertThat(keys(weighed)).containsExactly(95, 96, 97, 98, 99);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package org.texhnolyzze.common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.texhnolyzze.common.OffHeapLRUCacheTest.Bytes;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MappedDiskTierTest {
+
+    static final LRUCache.Codec<Integer> INT_CODEC = new LRUCache.Codec<>() {
+
+        @Override
+        public void write(Integer value, DataOutput out) throws IOException {
+            out.writeInt(value);
+        }
+
+        @Override
+        public Integer read(DataInput in) throws IOException {
+            return in.readInt();
+        }
+
+    };
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testSpillsEvictedEntriesAndReopens() throws IOException {
+        AtomicInteger loads = new AtomicInteger();
+        try (MappedDiskTier<Integer, Bytes> tier = MappedDiskTier.open(dir, 1 << 20, 1 << 16, INT_CODEC, OffHeapLRUCacheTest.CODEC)) {
+            LRUCache<Integer, Bytes> cache = LRUCache.defaultImpl(1_000, tier);
+            for (int i = 0; i < 20; i++) {
+                cache.getIfPresentOrLoad(i, k -> {
+                    loads.incrementAndGet();
+                    return new Bytes(k, 100);
+                });
+            }
+            assertThat(tier.size()).isEqualTo(10);
+            assertThat(cache.getIfPresent(3).data).isEqualTo(new Bytes(3, 100).data);
+            assertThat(tier.size()).isEqualTo(10);
+            assertThat(loads.get()).isEqualTo(20);
+        }
+        try (MappedDiskTier<Integer, Bytes> tier = MappedDiskTier.open(dir, 1 << 20, 1 << 16, INT_CODEC, OffHeapLRUCacheTest.CODEC)) {
+            assertThat(tier.size()).isEqualTo(10);
+            ConcurrentLRUCache<Integer, Bytes> cache = LRUCache.<Integer, Bytes>builder(1_000).secondTier(tier).build();
+            for (int i = 0; i < 10; i++) {
+                if (i == 3)
+                    continue;
+                assertThat(cache.getIfPresentOrLoad(i, k -> {
+                    throw new AssertionError("Must be read from the disk");
+                }).data).isEqualTo(new Bytes(i, 100).data);
+            }
+        }
+    }
+
+    @Test
+    void testKeepsSpilledValueThatDoesNotFit() throws IOException {
+        try (MappedDiskTier<Integer, Bytes> tier = MappedDiskTier.open(dir, 1 << 20, 1 << 16, INT_CODEC, OffHeapLRUCacheTest.CODEC)) {
+            tier.put(1, new Bytes(1, 500));
+            List<LRUCache<Integer, Bytes>> caches = List.of(
+                LRUCache.defaultImpl(100, tier),
+                LRUCache.<Integer, Bytes>builder(100).secondTier(tier).build()
+            );
+            for (LRUCache<Integer, Bytes> cache : caches) {
+                assertThatThrownBy(() -> cache.getIfPresent(1)).isInstanceOf(RuntimeException.class);
+                assertThatThrownBy(() -> cache.getIfPresentOrLoad(1, k -> null)).isInstanceOf(RuntimeException.class);
+                assertThatThrownBy(() -> cache.getAllOrLoad(List.of(1), keys -> Map.of())).isInstanceOf(RuntimeException.class);
+                assertThat(tier.get(1).data).isEqualTo(new Bytes(1, 500).data);
+            }
+            LRUCache<Integer, Bytes> cache = caches.get(1);
+            cache.setMaxCapacity(1_000);
+            assertThat(cache.getIfPresent(1).data).isEqualTo(new Bytes(1, 500).data);
+            assertThat(tier.size()).isZero();
+        }
+    }
+
+    @Test
+    void testCompactsAndKeepsBudget() throws IOException {
+        try (MappedDiskTier<Integer, Bytes> tier = MappedDiskTier.open(dir, 8_192, 4_096, INT_CODEC, OffHeapLRUCacheTest.CODEC)) {
+            for (int round = 0; round < 50; round++) {
+                for (int i = 0; i < 5; i++)
+                    tier.put(i, new Bytes(i + round, 100));
+                assertThat(tier.getSizeBytes()).isLessThanOrEqualTo(8_192);
+            }
+            for (int i = 0; i < 5; i++)
+                assertThat(tier.get(i).data).isEqualTo(new Bytes(i + 49, 100).data);
+            for (int i = 100; i < 200; i++)
+                tier.put(i, new Bytes(i, 100));
+            assertThat(tier.getSizeBytes()).isLessThanOrEqualTo(8_192);
+            assertThat(tier.get(0)).isNull();
+            assertThat(tier.get(199).data).isEqualTo(new Bytes(199, 100).data);
+        }
+    }
+
+    @Test
+    void testCompactionSpillingOverSeveralSegments() throws IOException {
+        // 120 byte records, 34 per segment: keys 0..101 fill three segments, 102 starts the fourth
+        try (MappedDiskTier<Integer, Bytes> tier = MappedDiskTier.open(dir, 1 << 20, 4_096, INT_CODEC, OffHeapLRUCacheTest.CODEC)) {
+            for (int i = 0; i < 103; i++)
+                tier.put(i, new Bytes(i, 100));
+            // 18 of 34 records taken from each of the first three segments: all of them are sparse,
+            // but their 48 live records need more than one segment
+            for (int i = 0; i < 102; i++) {
+                if (i % 34 < 18)
+                    assertThat(tier.take(i).data).isEqualTo(new Bytes(i, 100).data);
+            }
+            // The 26th record rolls the fourth segment over and starts the compaction
+            for (int i = 200; i < 230; i++)
+                tier.put(i, new Bytes(i, 100));
+            tier.put(5, new Bytes(-5, 100));
+            assertThat(tier.size()).isEqualTo(48 + 1 + 30 + 1);
+        }
+        try (MappedDiskTier<Integer, Bytes> tier = MappedDiskTier.open(dir, 1 << 20, 4_096, INT_CODEC, OffHeapLRUCacheTest.CODEC)) {
+            assertThat(tier.size()).isEqualTo(48 + 1 + 30 + 1);
+            for (int i = 0; i < 103; i++) {
+                if (i == 5)
+                    assertThat(tier.get(i).data).isEqualTo(new Bytes(-5, 100).data);
+                else if (i < 102 && i % 34 < 18)
+                    assertThat(tier.get(i)).isNull();
+                else
+                    assertThat(tier.get(i).data).isEqualTo(new Bytes(i, 100).data);
+            }
+            for (int i = 200; i < 230; i++)
+                assertThat(tier.get(i).data).isEqualTo(new Bytes(i, 100).data);
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+package org.texhnolyzze.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class OffHeapLRUCacheTest {
+
+    static final class Bytes implements LRUCache.Sizeable {
+
+        final byte[] data;
+
+        Bytes(int key, int length) {
+            data = new byte[length];
+            for (int i = 0; i < length; i++)
+                data[i] = (byte) (key + i);
+        }
+
+        Bytes(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public long getSizeBytes() {
+            return data.length;
+        }
+
+    }
+
+    static final LRUCache.Codec<Bytes> CODEC = new LRUCache.Codec<>() {
+
+        @Override
+        public void write(Bytes value, DataOutput out) throws IOException {
+            out.writeInt(value.data.length);
+            out.write(value.data);
+        }
+
+        @Override
+        public Bytes read(DataInput in) throws IOException {
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new Bytes(data);
+        }
+
+    };
+
+    @Test
+    void testStoresValuesInPages() {
+        LRUCache<Integer, Bytes> cache = LRUCache.offHeapImpl(10 * 64, 1, 64, CODEC);
+        cache.getIfPresentOrLoad(1, k -> new Bytes(k, 100));
+        cache.getIfPresentOrLoad(2, k -> new Bytes(k, 10));
+        assertThat(cache.getSizeBytes()).isEqualTo(3 * 64);
+        assertThat(cache.getIfPresent(1).data).isEqualTo(new Bytes(1, 100).data);
+        cache.getIfPresentOrLoad(3, k -> new Bytes(k, 400));
+        List<Integer> keys = new ArrayList<>();
+        for (Map.Entry<Integer, Bytes> e : cache.fromLeastToMostRecentlyUsed())
+            keys.add(e.getKey());
+        assertThat(keys).containsExactly(2, 1, 3);
+        assertThat(cache.getSizeBytes()).isEqualTo(10 * 64);
+        cache.setMaxCapacity(8 * 64);
+        assertThat(cache.getIfPresent(2)).isNull();
+        assertThat(cache.getIfPresent(1)).isNull();
+        assertThat(cache.getSizeBytes()).isEqualTo(7 * 64);
+        assertThat(cache.getIfPresent(3).data).isEqualTo(new Bytes(3, 400).data);
+        assertThatThrownBy(() -> cache.getIfPresentOrLoad(4, k -> new Bytes(k, 1_000))).isInstanceOf(RuntimeException.class);
+    }
+
+    @Test
+    void testReleasesSlabsWhenShrunk() {
+        // 1 KiB pages, so 1024 pages per slab
+        OffHeapLRUCache<Integer, Bytes> cache = new OffHeapLRUCache<>(8 << 20, 1, 1024, CODEC);
+        for (int i = 0; i < 6_000; i++)
+            cache.getIfPresentOrLoad(i, k -> new Bytes(k, 1_000));
+        assertThat(cache.getAllocatedBytes()).isEqualTo(6 << 20);
+        // Evicts the oldest entries from the first slabs, the survivors live in the last ones and have to move
+        cache.setMaxCapacity(2 << 20);
+        assertThat(cache.getAllocatedBytes()).isEqualTo(2 << 20);
+        assertThat(cache.getSizeBytes()).isEqualTo(2 << 20);
+        for (int i = 6_000 - 2_048; i < 6_000; i++)
+            assertThat(cache.getIfPresent(i).data).isEqualTo(new Bytes(i, 1_000).data);
+        cache.setMaxCapacity(8 << 20);
+        cache.getIfPresentOrLoad(-1, k -> new Bytes(k, 1_000));
+        assertThat(cache.getAllocatedBytes()).isEqualTo(3 << 20);
+    }
+
+    @Test
+    void testBorrowsPagesFromOtherStripes() {
+        // 4 pages per stripe
+        LRUCache<Integer, Bytes> cache = LRUCache.offHeapImpl(16 * 64, 4, 64, CODEC);
+        cache.getIfPresentOrLoad(1, k -> new Bytes(k, 600));
+        assertThat(cache.getSizeBytes()).isEqualTo(10 * 64);
+        assertThat(cache.getIfPresent(1).data).isEqualTo(new Bytes(1, 600).data);
+        for (int i = 100; i < 140; i++) {
+            cache.getIfPresentOrLoad(i, k -> new Bytes(k, 10));
+            assertThat(cache.getSizeBytes()).isLessThanOrEqualTo(16 * 64);
+        }
+        // The borrowed pages went back to the other stripes
+        assertThat(cache.getIfPresent(1)).isNull();
+        assertThat(cache.getSizeBytes()).isEqualTo(16 * 64);
+        cache.getIfPresentOrLoad(2, k -> new Bytes(k, 1_000));
+        assertThat(cache.getIfPresent(2).data).isEqualTo(new Bytes(2, 1_000).data);
+        assertThat(cache.getSizeBytes()).isLessThanOrEqualTo(16 * 64);
+        assertThatThrownBy(() -> cache.getIfPresentOrLoad(3, k -> new Bytes(k, 1_100))).isInstanceOf(RuntimeException.class);
+    }
+
+    @Test
+    void testConcurrentAccess() throws Exception {
+        LRUCache<Integer, Bytes> cache = LRUCache.offHeapImpl(1 << 20, 4, 256, CODEC);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    int key = ThreadLocalRandom.current().nextInt(1_000);
+                    Bytes bytes = cache.getIfPresentOrLoad(key, k -> new Bytes(k, k * 3));
+                    assertThat(bytes.data).isEqualTo(new Bytes(key, key * 3).data);
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            pool.shutdownNow();
+        }
+        assertThat(cache.getSizeBytes()).isLessThanOrEqualTo(cache.getMaxCapacityBytes());
+    }
+
+}
@@ -0,0 +1,159 @@
+package org.texhnolyzze.common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the adaptive sequential cutoff of {@link ParallelMergeSort} against fixed ones
+ * (50 is the old per-task threshold) at different pool sizes, with {@link Arrays#parallelSort} as the baseline.
+ * Not a unit test and not compiled by default, needs the jmh profile: {@code mvn -Pjmh test-compile}, then run {@code main}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ParallelMergeSortBenchmark {
+
+    @Param({"100000", "10000000"})
+    int size;
+
+    @Param({"1", "4", "16"})
+    int parallelism;
+
+    private ForkJoinPool pool;
+    private long[] source;
+    private long[] longs;
+    private Long[] boxedSource;
+    private Long[] boxed;
+    private Long[] presortedSource;
+    private Long[] presorted;
+
+    @Setup(Level.Trial)
+    public void createInput() {
+        pool = new ForkJoinPool(parallelism);
+        source = new Random(42).longs(size).toArray();
+        boxedSource = Arrays.stream(source).boxed().toArray(Long[]::new);
+        // Appended in time order with a little jitter, the case sortNatural is for
+        presortedSource = new Long[size];
+        Random random = new Random(7);
+        for (int i = 0; i < size; i++)
+            presortedSource[i] = i * 16L + random.nextInt(64);
+    }
+
+    @Setup(Level.Invocation)
+    public void shuffle() {
+        longs = source.clone();
+        boxed = boxedSource.clone();
+        presorted = presortedSource.clone();
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private long[] longsWithCutoff(int cutoff) {
+        pool.invoke(new PrimitiveMergeSort.LongTask(longs.clone(), 0, longs, 0, null, null, 0, longs.length, cutoff));
+        return longs;
+    }
+
+    @Benchmark
+    public long[] longsCutoff50() {
+        return longsWithCutoff(50);
+    }
+
+    @Benchmark
+    public long[] longsCutoff1024() {
+        return longsWithCutoff(1 << 10);
+    }
+
+    @Benchmark
+    public long[] longsCutoff8192() {
+        return longsWithCutoff(1 << 13);
+    }
+
+    @Benchmark
+    public long[] longsCutoff65536() {
+        return longsWithCutoff(1 << 16);
+    }
+
+    @Benchmark
+    public long[] longsAdaptive() {
+        return ParallelMergeSort.sort(pool, longs, 0, longs.length - 1);
+    }
+
+    @Benchmark
+    public long[] longsRadix() {
+        return ParallelRadixSort.sort(pool, longs, 0, longs.length - 1);
+    }
+
+    @Benchmark
+    public long[] longsArraysParallelSort() {
+        // Runs in the common pool whatever parallelism says
+        Arrays.parallelSort(longs);
+        return longs;
+    }
+
+    @Benchmark
+    public Long[] objectsAdaptive() {
+        return ParallelMergeSort.sort(pool, boxed, 0, boxed.length - 1, 50, Comparator.naturalOrder(), new Long[boxed.length]);
+    }
+
+    @Benchmark
+    public Long[] objectsByLongKey() {
+        return ParallelMergeSort.sortByLongKey(pool, boxed, 0, boxed.length - 1, Long::longValue);
+    }
+
+    @Benchmark
+    public Long[] objectsRadixByLongKey() {
+        return ParallelRadixSort.sortByLongKey(pool, boxed, 0, boxed.length - 1, Long::longValue);
+    }
+
+    @Benchmark
+    public Long[] objectsNatural() {
+        return ParallelMergeSort.sortNatural(pool, boxed, 0, boxed.length - 1, Comparator.naturalOrder(), new Long[boxed.length]);
+    }
+
+    @Benchmark
+    public Long[] presortedAdaptive() {
+        return ParallelMergeSort.sort(pool, presorted, 0, presorted.length - 1, 50, Comparator.naturalOrder(), new Long[presorted.length]);
+    }
+
+    @Benchmark
+    public Long[] presortedNatural() {
+        return ParallelMergeSort.sortNatural(pool, presorted, 0, presorted.length - 1, Comparator.naturalOrder(), new Long[presorted.length]);
+    }
+
+    @Benchmark
+    public Long[] objectsArraysParallelSort() {
+        Arrays.parallelSort(boxed, Comparator.naturalOrder());
+        return boxed;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ParallelMergeSortBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -0,0 +1,191 @@
+package org.texhnolyzze.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ParallelMergeSortTest {
+
+    private static Integer[] random(int n, int bound, long seed) {
+        Random random = new Random(seed);
+        Integer[] res = new Integer[n];
+        for (int i = 0; i < n; i++)
+            res[i] = random.nextInt(bound);
+        return res;
+    }
+
+    @Test
+    void testSortsInPlace() {
+        for (int n : new int[] {0, 1, 2, 49, 50, 51, 1_000, 100_003}) {
+            Integer[] arr = random(n, 1_000, n);
+            Integer[] expected = arr.clone();
+            Arrays.sort(expected);
+            assertThat(ParallelMergeSort.sort(arr, Comparator.naturalOrder(), Integer.class)).isSameAs(arr);
+            assertThat(arr).as("n = %d", n).containsExactly(expected);
+        }
+        Integer[] sorted = random(10_000, Integer.MAX_VALUE, 1);
+        Arrays.sort(sorted);
+        Integer[] reversed = sorted.clone();
+        ParallelMergeSort.sort(reversed, 8, Comparator.reverseOrder(), Integer.class);
+        for (int i = 0; i < sorted.length; i++)
+            assertThat(reversed[i]).isEqualTo(sorted[sorted.length - 1 - i]);
+    }
+
+    @Test
+    void testSortsRangeWithScratch() {
+        Integer[] arr = random(10_000, 100, 7);
+        Integer[] expected = arr.clone();
+        Arrays.sort(expected, 100, 9_000);
+        Integer[] scratch = new Integer[9_000];
+        ParallelMergeSort.sort(arr, 100, 8_999, 16, Comparator.naturalOrder(), scratch);
+        assertThat(arr).containsExactly(expected);
+        assertThatThrownBy(() -> ParallelMergeSort.sort(arr, 0, 9_999, 16, Comparator.naturalOrder(), scratch))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testStable() {
+        int n = 50_000;
+        Integer[] keys = random(n, 10, 3);
+        Integer[] idx = new Integer[n];
+        for (int i = 0; i < n; i++)
+            idx[i] = i;
+        ParallelMergeSort.sort(idx, Comparator.comparing(i -> keys[i]), Integer.class);
+        for (int i = 1; i < n; i++) {
+            assertThat(keys[idx[i - 1]]).isLessThanOrEqualTo(keys[idx[i]]);
+            if (keys[idx[i - 1]].equals(keys[idx[i]]))
+                assertThat(idx[i - 1]).isLessThan(idx[i]);
+        }
+    }
+
+    @Test
+    void testPrimitives() {
+        Random random = new Random(11);
+        for (int n : new int[] {0, 1, 2, 50, 1_000, 100_003}) {
+            int[] ints = random.ints(n).toArray();
+            int[] expectedInts = ints.clone();
+            Arrays.sort(expectedInts);
+            assertThat(ParallelMergeSort.sort(ints)).isSameAs(ints).containsExactly(expectedInts);
+
+            long[] longs = random.longs(n).toArray();
+            long[] expectedLongs = longs.clone();
+            Arrays.sort(expectedLongs, n / 4, n - n / 4);
+            ParallelMergeSort.sort(longs, n / 4, n - n / 4 - 1);
+            assertThat(longs).containsExactly(expectedLongs);
+
+            double[] doubles = random.doubles(n, -1e9, 1e9).toArray();
+            for (int i = 0; i < n; i += 97)
+                doubles[i] = new double[] {Double.NaN, -0.0, 0.0, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY}[i % 5];
+            double[] expectedDoubles = doubles.clone();
+            Arrays.sort(expectedDoubles);
+            assertThat(ParallelMergeSort.sort(doubles)).containsExactly(expectedDoubles);
+        }
+    }
+
+    @Test
+    void testSortByKey() {
+        int n = 100_003;
+        Random random = new Random(5);
+        long[] values = random.longs(n, 0, 1_000).toArray();
+        Long[] arr = new Long[n];
+        for (int i = 0; i < n; i++)
+            arr[i] = values[i];
+        Long[] expected = arr.clone();
+        Arrays.sort(expected);
+        assertThat(ParallelMergeSort.sortByLongKey(arr, Long::longValue)).isSameAs(arr).containsExactly(expected);
+
+        Integer[] idx = new Integer[n];
+        for (int i = 0; i < n; i++)
+            idx[i] = i;
+        ParallelMergeSort.sortByIntKey(idx, i -> (int) (values[i] % 10));
+        for (int i = 1; i < n; i++) {
+            long prev = values[idx[i - 1]] % 10;
+            long next = values[idx[i]] % 10;
+            assertThat(prev).isLessThanOrEqualTo(next);
+            if (prev == next)
+                assertThat(idx[i - 1]).isLessThan(idx[i]);
+        }
+
+        Double[] doubles = {3.5, -0.0, Double.NaN, 0.0, -7.25, Double.NEGATIVE_INFINITY, 1e300};
+        ParallelMergeSort.sortByDoubleKey(doubles, Double::doubleValue);
+        assertThat(doubles).containsExactly(Double.NEGATIVE_INFINITY, -7.25, -0.0, 0.0, 3.5, 1e300, Double.NaN);
+    }
+
+    @Test
+    void testCustomPoolAndCutoff() {
+        assertThat(ParallelMergeSort.sequentialCutoff(1_000, 8)).isEqualTo(1 << 13);
+        assertThat(ParallelMergeSort.sequentialCutoff(10_000_000, 8)).isEqualTo(10_000_000 / 32);
+        assertThat(ParallelMergeSort.sequentialCutoff(10_000_000, 0)).isEqualTo(10_000_000 / 4);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            for (int round = 0; round < 3; round++) {
+                Integer[] arr = random(200_000, 1_000, round);
+                Integer[] expected = arr.clone();
+                Arrays.sort(expected);
+                ParallelMergeSort.sort(pool, arr, Comparator.naturalOrder(), Integer.class);
+                assertThat(arr).isEqualTo(expected);
+                long[] longs = new Random(round).longs(200_000).toArray();
+                long[] expectedLongs = longs.clone();
+                Arrays.sort(expectedLongs);
+                assertThat(ParallelMergeSort.sort(pool, longs, 0, longs.length - 1)).isEqualTo(expectedLongs);
+            }
+            assertThat(pool.isShutdown()).isFalse();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testSortNatural() {
+        Random random = new Random(13);
+        for (int n : new int[] {0, 1, 2, 31, 32, 33, 1_000, 100_003}) {
+            Integer[] arr = random(n, 1_000, n);
+            // Sawtooth of ascending and descending runs of random length
+            for (int from = 0; from < n / 2; ) {
+                int to = Math.min(n / 2, from + 1 + random.nextInt(500));
+                Arrays.sort(arr, from, to, random.nextBoolean() ? Comparator.naturalOrder() : Comparator.reverseOrder());
+                from = to;
+            }
+            Integer[] expected = arr.clone();
+            Arrays.sort(expected);
+            assertThat(ParallelMergeSort.sortNatural(arr, Comparator.naturalOrder(), Integer.class)).isSameAs(arr);
+            assertThat(arr).as("n = %d", n).containsExactly(expected);
+        }
+
+        int n = 300_000;
+        Integer[] keys = random(n, 100, 17);
+        Integer[] idx = new Integer[n];
+        for (int i = 0; i < n; i++)
+            idx[i] = i;
+        Integer[] scratch = new Integer[n];
+        ParallelMergeSort.sortNatural(idx, 0, n - 1, Comparator.comparing(i -> keys[i]), scratch);
+        for (int i = 1; i < n; i++) {
+            assertThat(keys[idx[i - 1]]).isLessThanOrEqualTo(keys[idx[i]]);
+            if (keys[idx[i - 1]].equals(keys[idx[i]]))
+                assertThat(idx[i - 1]).isLessThan(idx[i]);
+        }
+
+        AtomicLong comparisons = new AtomicLong();
+        Comparator<Integer> counting = (a, b) -> {
+            comparisons.incrementAndGet();
+            return Integer.compare(a, b);
+        };
+        for (int i = 0; i < n; i++)
+            idx[i] = i;
+        ParallelMergeSort.sortNatural(idx, 0, n - 1, counting, scratch);
+        assertThat(comparisons.get()).isLessThan(n + 1_000L);
+        comparisons.set(0);
+        ParallelMergeSort.sortNatural(idx, 0, n - 1, counting.reversed(), scratch);
+        assertThat(comparisons.get()).isLessThan(n + 1_000L);
+        for (int i = 0; i < n; i++)
+            assertThat(idx[i]).isEqualTo(n - 1 - i);
+    }
+
+}
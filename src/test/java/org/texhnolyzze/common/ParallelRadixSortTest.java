@@ -0,0 +1,66 @@
+package org.texhnolyzze.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ParallelRadixSortTest {
+
+    @Test
+    void testPrimitives() {
+        Random random = new Random(19);
+        for (int n : new int[] {0, 1, 2, 1_000, 100_003, 1_000_000}) {
+            int[] ints = random.ints(n).toArray();
+            for (int i = 0; i < n; i += 101)
+                ints[i] = new int[] {Integer.MIN_VALUE, Integer.MAX_VALUE, 0, -1}[i % 4];
+            int[] expectedInts = ints.clone();
+            Arrays.sort(expectedInts);
+            assertThat(ParallelRadixSort.sort(ints)).isSameAs(ints).isEqualTo(expectedInts);
+
+            long[] longs = random.longs(n).toArray();
+            for (int i = 0; i < n; i += 101)
+                longs[i] = new long[] {Long.MIN_VALUE, Long.MAX_VALUE, 0, -1}[i % 4];
+            long[] expectedLongs = longs.clone();
+            Arrays.sort(expectedLongs, n / 4, n - n / 4);
+            ParallelRadixSort.sort(longs, n / 4, n - n / 4 - 1);
+            assertThat(longs).isEqualTo(expectedLongs);
+        }
+
+        // Keys below 256 take a single pass, which leaves the result in the buffer
+        int[] narrow = random.ints(500_000, 0, 200).toArray();
+        int[] expected = narrow.clone();
+        Arrays.sort(expected, 7, 499_990);
+        ParallelRadixSort.sort(narrow, 7, 499_989);
+        assertThat(narrow).isEqualTo(expected);
+    }
+
+    @Test
+    void testSortByLongKey() {
+        int n = 300_000;
+        Random random = new Random(23);
+        long[] values = random.longs(n, 0, 200).toArray();
+        Integer[] idx = new Integer[n];
+        for (int i = 0; i < n; i++)
+            idx[i] = i;
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            assertThat(ParallelRadixSort.sortByLongKey(pool, idx, 0, n - 1, i -> values[i])).isSameAs(idx);
+        } finally {
+            pool.shutdown();
+        }
+        for (int i = 1; i < n; i++) {
+            assertThat(values[idx[i - 1]]).isLessThanOrEqualTo(values[idx[i]]);
+            if (values[idx[i - 1]] == values[idx[i]])
+                assertThat(idx[i - 1]).isLessThan(idx[i]);
+        }
+
+        Long[] small = {5L, Long.MIN_VALUE, -3L, Long.MAX_VALUE, 0L};
+        ParallelRadixSort.sortByLongKey(small, Long::longValue);
+        assertThat(small).containsExactly(Long.MIN_VALUE, -3L, 0L, 5L, Long.MAX_VALUE);
+    }
+
+}
@@ -0,0 +1,135 @@
+package org.texhnolyzze.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PipelineTest {
+
+    private static final List<Integer> NUMBERS = IntStream.range(0, 100_000).boxed().collect(Collectors.toList());
+
+    @Test
+    void testRunsStages() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        try {
+            for (CancellableBlockingQueue.Backend backend : CancellableBlockingQueue.Backend.values()) {
+                AtomicLong sum = new AtomicLong();
+                Pipeline.Execution run = Pipeline.from(NUMBERS)
+                    .backend(backend)
+                    .bufferSize(64)
+                    .filter(i -> i % 2 == 0, 2)
+                    .flatMap(i -> Arrays.asList(i, i), 3)
+                    .map(i -> (long) i * 3, 4)
+                    .to(sum::addAndGet, 2, pool);
+                run.completion().get(30, TimeUnit.SECONDS);
+                assertThat(sum.get()).isEqualTo(2L * 3 * IntStream.range(0, 100_000).filter(i -> i % 2 == 0).asLongStream().sum());
+                assertThat(run.produced()).isEqualTo(100_000);
+                List<Pipeline.StageStats> stats = run.stats();
+                assertThat(stats).extracting(Pipeline.StageStats::name).containsExactly("filter#0", "flatMap#1", "map#2", "sink");
+                assertThat(stats).extracting(Pipeline.StageStats::processed).containsExactly(100_000L, 50_000L, 100_000L, 100_000L);
+                assertThat(stats.get(0).throughputPerSecond()).isPositive();
+                assertThat(stats.get(0).occupancy()).isBetween(0.0, 1.0);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void testMapOrderedKeepsInputOrder() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        try {
+            List<Integer> out = new ArrayList<>();
+            Pipeline.Execution run = Pipeline.from(NUMBERS)
+                .bufferSize(64)
+                .mapOrdered(i -> {
+                    if (ThreadLocalRandom.current().nextInt(1_000) == 0)
+                        Thread.yield();
+                    return i * 2;
+                }, 4, 8)
+                .map(i -> i, 3)
+                .mapOrdered(i -> i / 2, 4)
+                .to(out::add, pool);
+            run.completion().get(30, TimeUnit.SECONDS);
+            assertThat(out).hasSize(NUMBERS.size());
+            List<Integer> sorted = new ArrayList<>(out);
+            sorted.sort(null);
+            assertThat(sorted).isEqualTo(NUMBERS);
+
+            List<Integer> ordered = new ArrayList<>();
+            Pipeline.from(NUMBERS)
+                .mapOrdered(i -> {
+                    if (i % 97 == 0)
+                        Thread.yield();
+                    return -i;
+                }, 6, 4)
+                .mapOrdered(i -> -i, 3, 1)
+                .to(ordered::add, pool)
+                .await();
+            assertThat(ordered).isEqualTo(NUMBERS);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void testFailureAbortsAllStages() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            Pipeline.Execution run = Pipeline.from(NUMBERS)
+                .map(i -> {
+                    if (i == 5_000)
+                        throw new IllegalStateException("bad record " + i);
+                    return i;
+                }, 4)
+                .to(i -> {}, pool);
+            assertThatThrownBy(run::await).isInstanceOf(IllegalStateException.class).hasMessage("bad record 5000");
+            assertThat(run.produced()).isLessThan(100_000);
+            assertThatThrownBy(() -> Pipeline.from(NUMBERS).map(i -> i, 8).to(i -> {}, Executors.newFixedThreadPool(4)))
+                .isInstanceOf(IllegalArgumentException.class);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void testFailingSinkUnblocksFullStages() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(32);
+        try {
+            for (CancellableBlockingQueue.Backend backend : CancellableBlockingQueue.Backend.values()) {
+                // Маленькие очереди заполнены, когда sink падает: все map-потоки ждут места
+                Pipeline.Execution run = Pipeline.from(NUMBERS)
+                    .backend(backend)
+                    .bufferSize(4)
+                    .map(i -> i, 4)
+                    .map(i -> i, 4)
+                    .map(i -> i, 4)
+                    .map(i -> i, 4)
+                    .to(i -> {
+                        if (i > 100)
+                            throw new IllegalStateException("sink failed");
+                    }, pool);
+                assertThatThrownBy(() -> run.completion().get(10, TimeUnit.SECONDS))
+                    .as(backend.name())
+                    .isInstanceOf(ExecutionException.class)
+                    .hasCauseInstanceOf(IllegalStateException.class);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+}